@@ -0,0 +1,97 @@
+#!/bin/sh
+#
+# Class data sharing for faster test startup.  A JVM that runs tests spends
+# much of its short life loading classes;  an AppCDS archive lets it map 
+# them in, already parsed and verified.  This needs JDK 13 or later, and
+# out/testy.jar (see libs.sh).
+#
+#   cds.sh dump archive.jsa classpath MainClass [args...]
+#	Run the tests once, and archive the classes they loaded from the
+#	JDK, testy.jar and the classpath.
+#   cds.sh run archive.jsa classpath MainClass [args...]
+#	Run the tests using the archive.
+#   cds.sh bench archive.jsa classpath MainClass [args...]
+#	Compare the time to the first test with and without the archive.
+#
+# The classpath has to be made of jar files, since the JVM can't archive
+# classes from a directory.  The archive is only used with the same JDK,
+# and the same classpath.
+#
+if [ $# -lt 4 ] ; then
+    echo "Usage:  $0 dump|run|bench archive.jsa classpath MainClass [args...]"
+    exit 1
+fi
+cmd=$1
+archive=$2
+cp=`dirname $0`/../out/testy.jar:$3
+shift 3
+JAVA=java
+if [ "$JAVA_HOME" != "" ] ; then
+    JAVA=$JAVA_HOME/bin/java
+fi
+
+#
+# The time now in milliseconds, for testy.startupTime, so that the time 
+# to the first test counts from when the JVM is launched.  If date can't
+# give milliseconds, the JVM is asked when it started instead.
+#
+launch_time() {
+    t=`date +%s%3N 2>/dev/null`
+    case "$t" in
+	""|*[!0-9]*) echo true ;;
+	*) echo $t ;;
+    esac
+}
+
+first_test() {
+    $JAVA -Dtesty.startupTime=`launch_time` "$@" 2>&1 >/dev/null \
+	| sed -n 's/^Time to first test:  \([0-9]*\) ms.*/\1/p'
+}
+
+#
+# Time a run, leaving the time to the first test in t.
+#
+time_run() {
+    t=`first_test "$@"`
+    if [ "$t" = "" ] ; then
+	echo "The tests didn't report the time to the first test."
+	echo "Do they run, and call Testy.run()?"
+	exit 1
+    fi
+}
+
+case $cmd in
+    dump)
+	# testy.startupTime is set as it is for bench, so the classes it
+	# uses are archived too.
+	exec $JAVA -XX:ArchiveClassesAtExit=$archive \
+	    -Dtesty.startupTime=`launch_time` -cp $cp "$@"
+	;;
+    run)
+	exec $JAVA -XX:SharedArchiveFile=$archive -cp $cp "$@"
+	;;
+    bench)
+	if [ ! -f $archive ] ; then
+	    echo "Please create $archive first, with $0 dump."
+	    exit 1
+	fi
+	runs=5
+	without=0
+	with=0
+	i=0
+	while [ $i -lt $runs ] ; do
+	    time_run -cp $cp "$@"
+	    without=`expr $without + $t`
+	    time_run -XX:SharedArchiveFile=$archive -Xshare:on -cp $cp "$@"
+	    with=`expr $with + $t`
+	    i=`expr $i + 1`
+	done
+	echo "Time to first test, averaged over $runs runs:"
+	echo "    without $archive:  `expr $without / $runs` ms"
+	echo "    with $archive:  `expr $with / $runs` ms"
+	;;
+    *)
+	echo "Unknown command $cmd"
+	exit 1
+	;;
+esac
@@ -5,9 +5,16 @@ if [ "$JAVA8_HOME" = "" ] ; then
     echo "Please set the JAVA8_HOME environment variable."
     exit 1
 fi
+if [ "$JAVA17_HOME" = "" ] ; then
+    # testy.jar is a multi-release jar, with classes for newer versions
+    # of Java in src-9.  They're built with a newer JDK, as is 
+    # testy-flow.jar.
+    echo "Please set the JAVA17_HOME environment variable."
+    exit 1
+fi
 cd `dirname $0`/..
-rm -rf out/classes
-mkdir -p out/classes
+rm -rf out/classes out/classes-9 out/classes-flow
+mkdir -p out/classes out/classes-9 out/classes-flow
 $JAVA8_HOME/bin/javac -Xlint:unchecked -Xlint:deprecation \
         -sourcepath src -d out/classes \
 	-target 8 -source 8 -bootclasspath $JAVA8_HOME/jre/lib/rt.jar \
@@ -15,6 +22,29 @@ $JAVA8_HOME/bin/javac -Xlint:unchecked -Xlint:deprecation \
 if [ $? != 0 ] ; then
     exit 1
 fi
-cd out/classes
-jar cf ../testy.jar *
+$JAVA17_HOME/bin/javac -Xlint:unchecked -Xlint:deprecation \
+        --release 9 -cp out/classes -d out/classes-9 \
+	src-9/edu/calpoly/testy/*.java
+if [ $? != 0 ] ; then
+    exit 1
+fi
+$JAVA17_HOME/bin/javac -Xlint:unchecked -Xlint:deprecation \
+        --release 9 -cp out/classes -d out/classes-flow \
+	src-flow/edu/calpoly/testy/*.java
+if [ $? != 0 ] ; then
+    exit 1
+fi
+cd out
+rm -f testy.jar
+$JAVA17_HOME/bin/jar cfm testy.jar ../build/manifest.txt -C classes . \
+	--release 9 -C classes-9 .
+if [ $? != 0 ] ; then
+    exit 1
+fi
 echo "Created out/testy.jar"
+rm -f testy-flow.jar
+$JAVA17_HOME/bin/jar cf testy-flow.jar -C classes-flow .
+if [ $? != 0 ] ; then
+    exit 1
+fi
+echo "Created out/testy-flow.jar"
@@ -0,0 +1,84 @@
+#!/bin/sh
+#
+# Run the tests against out/testy.jar (see libs.sh) on each version of
+# Java that's set up, so that every version of the classes in the 
+# multi-release jar gets tested.
+#
+cd `dirname $0`/..
+if [ ! -f out/testy.jar ] ; then
+    echo "Please run build/libs.sh first."
+    exit 1
+fi
+
+#
+# Run a test program, and show the "Expected N failures.  Got:  M" lines
+# it prints.  If any has N different from M, or there aren't any, set 
+# failed.
+#
+check() {
+    results=`"$@" 2>/dev/null | grep "^Expected"`
+    if [ "$results" = "" ] ; then
+	echo "No results from $*"
+	failed=1
+	return
+    fi
+    echo "$results"
+    wrong=`echo "$results" | awk '$2 != $5'`
+    if [ "$wrong" != "" ] ; then
+	echo "Not as expected:"
+	echo "$wrong"
+	failed=1
+    fi
+}
+
+tested=0
+failed=0
+for home in "$JAVA8_HOME" "$JAVA17_HOME" "$JAVA21_HOME" ; do
+    if [ "$home" = "" ] ; then
+	continue
+    fi
+    echo "Testing with $home:"
+    rm -rf out/test
+    mkdir -p out/test
+    $home/bin/javac -Xlint:unchecked -cp out/testy.jar -d out/test \
+	test/src/Main.java test/src/edu/calpoly/testy/AgentMain.java
+    if [ $? != 0 ] ; then
+	exit 1
+    fi
+    check $home/bin/java -ea -cp out/test:out/testy.jar Main
+    check $home/bin/java -ea -cp out/test:out/testy.jar \
+	edu.calpoly.testy.AgentMain
+    if [ "$home" != "$JAVA8_HOME" ] ; then
+	# Flow needs Java 9 or later.
+	cp=out/testy.jar:out/testy-flow.jar
+	$home/bin/javac -Xlint:unchecked -cp $cp -d out/test \
+	    test/src/FlowMain.java
+	if [ $? != 0 ] ; then
+	    exit 1
+	fi
+	check $home/bin/java -ea -cp out/test:$cp FlowMain
+	# Class data sharing needs Java 13 or later, and the tests in a jar.
+	# Dumping runs the tests once, and the archive is then used for
+	# another run, to check they still pass with it.
+	rm -f out/tests.jar out/tests.jsa
+	$home/bin/jar cf out/tests.jar -C out/test .
+	check env JAVA_HOME=$home build/cds.sh dump out/tests.jsa \
+	    out/tests.jar -ea Main
+	if [ ! -f out/tests.jsa ] ; then
+	    echo "No class data sharing archive from build/cds.sh dump"
+	    failed=1
+	else
+	    check env JAVA_HOME=$home build/cds.sh run out/tests.jsa \
+		out/tests.jar -ea Main
+	fi
+    fi
+    tested=`expr $tested + 1`
+done
+if [ $tested = 0 ] ; then
+    echo "Please set JAVA8_HOME, JAVA17_HOME and/or JAVA21_HOME."
+    exit 1
+fi
+if [ $failed != 0 ] ; then
+    echo "Some tests didn't give the expected results."
+fi
+exit $failed
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.Arrays;
+
+/**
+ * Things that can be done faster on newer versions of Java.  This is the
+ * Java 9 version, which is used on 9 and later.  See 
+ * <code>src/edu/calpoly/testy/Platform.java</code>.
+ */
+final class Platform {
+
+    private Platform() {
+    }
+
+    //
+    // Called in each pass of a busy-wait loop.  This tells the CPU, e.g.
+    // with a PAUSE instruction on x86, so it can save power, and give the
+    // other hardware thread on its core more of a chance.
+    //
+    static void onSpinWait() {
+	Thread.onSpinWait();
+    }
+
+    //
+    // The index of the first difference in the first length elements of
+    // a and b, or -1 if there isn't one.  Arrays.mismatch is an intrinsic
+    // that compares many bytes at a time with vector instructions.
+    //
+    static int mismatch(byte[] a, byte[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(char[] a, char[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(boolean[] a, boolean[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(short[] a, short[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(int[] a, int[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(long[] a, long[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    //
+    // Floating point values are compared as by equals(), so NaN is equal
+    // to itself, and 0.0 isn't equal to -0.0.
+    //
+    static int mismatch(float[] a, float[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+
+    static int mismatch(double[] a, double[] b, int length) {
+	return Arrays.mismatch(a, 0, length, b, 0, length);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Checks the signals from a <code>java.util.concurrent.Flow.Publisher</code>
+ * against a script of steps.  The script says what items to expect, how
+ * the stream should end, and when to request more items, so that 
+ * back-pressure can be tested, viz:
+ * <pre>
+ *
+ *     FlowVerifier.create(publisher, 2)
+ *         .expectNext("a", "b")
+ *         .thenRequest(1000000)
+ *         .expectNextCount(999999)
+ *         .expectNextMatches(s -&gt; s.startsWith("z"))
+ *         .expectComplete()
+ *         .verify(Duration.ofSeconds(5));
+ * </pre>
+ * The verifier subscribes when <code>verify()</code> is called, and 
+ * checks each signal as it arrives, on the publisher's thread.  Items 
+ * aren't kept, so streams of any length can be checked.  As well as the
+ * steps, it checks that the publisher follows the rules:  it mustn't send
+ * more items than were requested, send null, or signal after it has 
+ * completed.  When a step fails, the subscription is cancelled.
+ * <p>
+ * Since <code>Flow</code> was added in Java 9, this class is in
+ * <code>testy-flow.jar</code>, which goes on the class path along with
+ * <code>testy.jar</code>.
+ *
+ * @param <T>	The type of the items
+ */
+public final class FlowVerifier<T> {
+
+    private static final int NEXT = 0;
+    private static final int COUNT = 1;
+    private static final int MATCH = 2;
+    private static final int REQUEST = 3;
+    private static final int CANCEL = 4;
+    private static final int COMPLETE = 5;
+    private static final int ERROR = 6;
+
+    private final Flow.Publisher<? extends T> publisher;
+    private final long initialRequest;
+    private final List<Step> steps = new ArrayList<>();
+
+    private static final class Step {
+	final int kind;
+	final Object value;	// item, predicate or error type
+	final long count;
+
+	Step(int kind, Object value, long count) {
+	    this.kind = kind;
+	    this.value = value;
+	    this.count = count;
+	}
+
+	String describe() {
+	    switch (kind) {
+		case NEXT:	return "item " + Assert.toString(value);
+		case COUNT:	return count + " more items";
+		case MATCH:	return "an item matching " + value;
+		case COMPLETE:	return "completion";
+		case ERROR:	return "an error of type " 
+				       + ((Class<?>) value).getName();
+		default:	return "nothing";
+	    }
+	}
+    }
+
+    private FlowVerifier(Flow.Publisher<? extends T> publisher, 
+    			 long initialRequest) 
+    {
+	this.publisher = Objects.requireNonNull(publisher);
+	this.initialRequest = initialRequest;
+    }
+
+    /**
+     * Make a verifier that requests all items as soon as it subscribes.
+     *
+     * @param <T>	The type of the items
+     * @param publisher	The publisher to check
+     *
+     * @return the verifier, with no steps yet
+     */
+    public static <T> FlowVerifier<T> create(
+    		Flow.Publisher<? extends T> publisher) 
+    {
+	return create(publisher, Long.MAX_VALUE);
+    }
+
+    /**
+     * Make a verifier that requests the given number of items when it
+     * subscribes.  More can be requested with {@link #thenRequest(long)}.
+     *
+     * @param <T>	The type of the items
+     * @param publisher	The publisher to check
+     * @param initialRequest	The number of items to request at first,
+     *				which may be zero
+     *
+     * @return the verifier, with no steps yet
+     */
+    public static <T> FlowVerifier<T> create(
+    		Flow.Publisher<? extends T> publisher, long initialRequest) 
+    {
+	if (initialRequest < 0) {
+	    throw new IllegalArgumentException("initialRequest:  " 
+	    				       + initialRequest);
+	}
+	return new FlowVerifier<>(publisher, initialRequest);
+    }
+
+    private FlowVerifier<T> add(int kind, Object value, long count) {
+	if (!steps.isEmpty() && steps.get(steps.size() - 1).kind >= CANCEL) {
+	    throw new IllegalStateException("No steps can follow " 
+	    	+ "expectComplete(), expectError() or thenCancel()");
+	}
+	steps.add(new Step(kind, value, count));
+	return this;
+    }
+
+    /**
+     * Expect the next items to be equal to the given values, as
+     * determined by {@link Assert#assertEquals(String, Object, Object)}.
+     *
+     * @param values	The expected items
+     *
+     * @return this verifier
+     */
+    @SafeVarargs
+    public final FlowVerifier<T> expectNext(T... values) {
+	for (T value : values) {
+	    add(NEXT, value, 1);
+	}
+	return this;
+    }
+
+    /**
+     * Expect the given number of items, whatever they are.
+     *
+     * @param count	The number of items
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> expectNextCount(long count) {
+	if (count < 0) {
+	    throw new IllegalArgumentException("count:  " + count);
+	}
+	return (count == 0) ? this : add(COUNT, null, count);
+    }
+
+    /**
+     * Expect the next item to match the given predicate.
+     *
+     * @param predicate	The test for the item
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> expectNextMatches(Predicate<? super T> predicate) {
+	return add(MATCH, Objects.requireNonNull(predicate), 1);
+    }
+
+    /**
+     * Request more items, once the steps before this one are done.
+     *
+     * @param n		The number of items to request
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> thenRequest(long n) {
+	if (n <= 0) {
+	    throw new IllegalArgumentException("n:  " + n);
+	}
+	return add(REQUEST, null, n);
+    }
+
+    /**
+     * Cancel the subscription, once the steps before this one are done.
+     * This is the last step.
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> thenCancel() {
+	return add(CANCEL, null, 0);
+    }
+
+    /**
+     * Expect the stream to complete normally.  This is the last step.
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> expectComplete() {
+	return add(COMPLETE, null, 0);
+    }
+
+    /**
+     * Expect the stream to end with an error of the given type.  This is
+     * the last step.
+     *
+     * @param type	The type of error
+     *
+     * @return this verifier
+     */
+    public FlowVerifier<T> expectError(Class<? extends Throwable> type) {
+	return add(ERROR, Objects.requireNonNull(type), 0);
+    }
+
+    /**
+     * Subscribe to the publisher, and check the stream against the steps,
+     * waiting up to ten seconds for it to end.
+     *
+     * @throws TestFailed if the stream doesn't match the steps
+     */
+    public void verify() {
+	verify(Duration.ofSeconds(10));
+    }
+
+    /**
+     * Subscribe to the publisher, and check the stream against the steps.
+     *
+     * @param timeout	How long to wait for the steps to be done
+     *
+     * @throws TestFailed if the stream doesn't match the steps, or they
+     *			  aren't done within the timeout
+     */
+    public void verify(Duration timeout) {
+	if (steps.isEmpty() || steps.get(steps.size() - 1).kind < CANCEL) {
+	    throw new IllegalStateException("The last step must be " 
+	    	+ "expectComplete(), expectError() or thenCancel()");
+	}
+	Checker checker = new Checker(steps.toArray(new Step[steps.size()]));
+	publisher.subscribe(checker);
+	boolean done;
+	try {
+	    done = checker.done.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new TestFailed("Interrupted", ex);
+	}
+	if (!done) {
+	    checker.timedOut(timeout);
+	}
+	TestFailed failure = checker.failure;
+	if (failure != null) {
+	    throw failure;
+	}
+    }
+
+    //
+    // The subscriber.  The Flow rules say signals to it are serial, so
+    // its state only needs to be handed to the thread that called verify()
+    // at the end, through the latch.
+    //
+    private final class Checker implements Flow.Subscriber<T> {
+	private final Step[] steps;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile TestFailed failure;
+	private volatile boolean finished;
+	private volatile Flow.Subscription subscription;
+	private int step;
+	private long remaining;
+	private long demand;
+	private long received;
+
+	Checker(Step[] steps) {
+	    this.steps = steps;
+	    this.remaining = steps[0].count;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+	    if (subscription != null) {
+		s.cancel();
+		fail("onSubscribe() was called twice", null);
+		return;
+	    }
+	    subscription = s;
+	    if (initialRequest > 0) {
+		request(initialRequest);
+	    }
+	    runActions();
+	}
+
+	@Override
+	public void onNext(T item) {
+	    if (finished) {
+		return;
+	    }
+	    long index = received++;
+	    if (item == null) {
+		fail("Item " + index + " was null", null);
+		return;
+	    } else if (demand == 0) {
+		fail("Item " + index + " was sent without being requested:  "
+		     + Assert.toString(item), null);
+		return;
+	    } else if (demand != Long.MAX_VALUE) {
+		demand--;
+	    }
+	    Step s = steps[step];
+	    switch (s.kind) {
+		case NEXT:
+		    try {
+			Assert.assertEquals("item " + index, s.value, item);
+		    } catch (TestFailed ex) {
+			fail(ex.getMessage(), null);
+			return;
+		    }
+		    advance();
+		    break;
+		case COUNT:
+		    if (--remaining == 0) {
+			advance();
+		    }
+		    break;
+		case MATCH:
+		    @SuppressWarnings("unchecked")
+		    Predicate<? super T> p = (Predicate<? super T>) s.value;
+		    boolean matched;
+		    try {
+			matched = p.test(item);
+		    } catch (Throwable t) {
+			fail("Item " + index + " couldn't be matched:  " 
+			     + Assert.toString(item), t);
+			return;
+		    }
+		    if (!matched) {
+			fail("Item " + index + " didn't match:  " 
+			     + Assert.toString(item), null);
+			return;
+		    }
+		    advance();
+		    break;
+		default:
+		    fail("Expected " + s.describe() + ", got item " + index 
+		    	 + ":  " + Assert.toString(item), null);
+		    return;
+	    }
+	    runActions();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+	    if (finished) {
+		return;
+	    }
+	    Step s = steps[step];
+	    if (t == null) {
+		fail("onError() was called with null", null);
+	    } else if (s.kind == ERROR && ((Class<?>) s.value).isInstance(t)) {
+		succeed();
+	    } else {
+		fail("Expected " + s.describe() + " after " + received 
+		     + " items, got an error", t);
+	    }
+	}
+
+	@Override
+	public void onComplete() {
+	    if (finished) {
+		return;
+	    }
+	    Step s = steps[step];
+	    if (s.kind == COMPLETE) {
+		succeed();
+	    } else {
+		fail("Expected " + s.describe() + " after " + received 
+		     + " items, got completion", null);
+	    }
+	}
+
+	private void advance() {
+	    step++;
+	    remaining = steps[step].count;
+	}
+
+	//
+	// Do the requests and cancels that are next in the script.  The
+	// step is advanced before requesting, since the publisher may send
+	// items from within request().
+	//
+	private void runActions() {
+	    for (;;) {
+		Step s = steps[step];
+		if (s.kind == REQUEST && !finished) {
+		    advance();
+		    request(s.count);
+		} else if (s.kind == CANCEL && !finished) {
+		    subscription.cancel();
+		    succeed();
+		    return;
+		} else {
+		    return;
+		}
+	    }
+	}
+
+	private void request(long n) {
+	    demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+	    subscription.request(n);
+	}
+
+	private synchronized void succeed() {
+	    if (finished) {
+		return;
+	    }
+	    finished = true;
+	    done.countDown();
+	}
+
+	private synchronized void fail(String message, Throwable cause) {
+	    if (finished) {
+		return;
+	    }
+	    finished = true;
+	    failure = new TestFailed(message, cause);
+	    Flow.Subscription s = subscription;
+	    if (s != null) {
+		s.cancel();
+	    }
+	    done.countDown();
+	}
+
+	void timedOut(Duration timeout) {
+	    Step s = steps[step];
+	    String expected = (s.kind == COUNT) ? (remaining + " more items")
+	    					: s.describe();
+	    fail("Timed out after " + timeout.toMillis() + " ms, expecting "
+	    	 + expected + " after " + received + " items", null);
+	}
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A <code>java.lang.instrument</code> agent that puts probes into the
+ * application's classes as they're loaded, so Testy can tell which 
+ * classes each test uses.  It's in <code>testy.jar</code>, so it's 
+ * turned on like this:
+ * <pre>
+ *
+ *     java -javaagent:testy.jar ...
+ * </pre>
+ * Classes loaded by the bootstrap or platform class loaders, and Testy's
+ * own classes, aren't instrumented.  Neither are classes from a loader
+ * that can't see Testy, like a plugin's loader with no parent, since
+ * their probes would fail with <code>NoClassDefFoundError</code>.  Type annotations inside the code of
+ * an instrumented method are dropped; see {@link Instrumenter}.  
+ * <p>
+ * The tests have to see the same Testy classes as the agent, which
+ * is loaded from the system class path.  {@link Launcher} does this,
+ * since its class loader asks its parent first, but a class loader that
+ * loads its own copy of Testy would leave that copy with nothing to
+ * record.  That's reported, rather than running with no data.  See the 
+ * "Test Impact" section of {@link Testy}, and {@link Coverage}, for how 
+ * the probes are used.
+ */
+public final class Agent {
+
+    private Agent() {
+    }
+
+    /**
+     * Called by the JVM before <code>main()</code>, to install the agent.
+     *
+     * @param args	The agent's arguments, which aren't used
+     * @param inst	The JVM's instrumentation
+     */
+    public static void premain(String args, Instrumentation inst) {
+	inst.addTransformer(
+		new Transformer(ClassLoader.getSystemClassLoader().getParent(),
+				System.getProperty("testy.coverage") != null));
+	Probes.setInstalled();
+	System.setProperty(Probes.AGENT_PROPERTY, "true");
+	Coverage.install();
+    }
+
+    static final class Transformer implements ClassFileTransformer {
+
+	private final ClassLoader platform;
+	private final boolean lines;
+	private final Map<ClassLoader, Boolean> seesProbes 
+	    = new WeakHashMap<>();
+	private boolean warned;
+
+	//
+	// Line probes are only put in if lines is true, since only coverage
+	// needs them.
+	//
+	Transformer(ClassLoader platform, boolean lines) {
+	    this.platform = platform;
+	    this.lines = lines;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className,
+				Class<?> classBeingRedefined, 
+				ProtectionDomain domain, byte[] classFile)
+	{
+	    if (loader == null || loader == platform || className == null
+		|| classBeingRedefined != null || isExcluded(className)
+		|| !seesProbes(loader))
+	    {
+		return null;
+	    }
+	    try {
+		CRC32 crc = new CRC32();
+		crc.update(classFile, 0, classFile.length);
+		return Instrumenter.instrument(className, classFile, 
+					       crc.getValue(), lines);
+	    } catch (Throwable t) {
+		// Since the class is loaded without probes, a test that
+		// only uses it won't be seen to depend on it.
+		synchronized(this) {
+		    if (!warned) {
+			warned = true;
+			System.err.println("Testy agent:  " + t.getMessage());
+		    }
+		}
+		return null;
+	    }
+	}
+
+	//
+	// Whether classes from the given loader can call the probes.  The
+	// lock isn't held while we ask the loader, since it might be waiting
+	// for a lock held by another thread that's loading a class.
+	//
+	private boolean seesProbes(ClassLoader loader) {
+	    Boolean sees;
+	    synchronized(seesProbes) {
+		sees = seesProbes.get(loader);
+	    }
+	    if (sees == null) {
+		try {
+		    Class.forName(Probes.class.getName(), false, loader);
+		    sees = true;
+		} catch (ClassNotFoundException | LinkageError ex) {
+		    sees = false;
+		}
+		synchronized(seesProbes) {
+		    seesProbes.put(loader, sees);
+		}
+	    }
+	    return sees;
+	}
+
+	private static boolean isExcluded(String className) {
+	    return className.startsWith("edu/calpoly/testy/")
+		|| className.startsWith("java/")
+		|| className.startsWith("javax/")
+		|| className.startsWith("jdk/")
+		|| className.startsWith("sun/")
+		|| className.startsWith("com/sun/");
+	}
+    }
+}
@@ -22,8 +22,25 @@
 
 package edu.calpoly.testy;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 
 /**
  * Various static methods to provide different test assertions.
@@ -1710,12 +1727,1005 @@ public class Assert {
     }
 
 
+    /**
+     * Asserts that two iterators give equal elements, in the same order,
+     * as determined by <code>java.util.Objects.deepEquals()</code>.  
+     * Only one element from each is held at a time, so this can check 
+     * sequences that are too big to fit in memory.  If it fails, the 
+     * message gives the index of the first difference.
+     *
+     * @param  message describing the test
+     * @param  expected the expected elements
+     * @param  actual the actual elements
+     * @throws TestFailed   if they aren't the same
+     */
+    public static void assertStreamsEqual(String message, 
+    					  Iterator<?> expected,
+    					  Iterator<?> actual)
+    {
+	long index = 0;
+	while (expected.hasNext()) {
+	    Object e = expected.next();
+	    if (!actual.hasNext()) {
+		throw new TestFailed(message + " : actual ended after " + index
+				     + " elements, expected:  " + toString(e));
+	    }
+	    Object a = actual.next();
+	    if (!Objects.deepEquals(e, a)) {
+		throw new TestFailed(message + " : element " + index 
+				     + " expected:  " + toString(e)
+				     + "  actual:  " + toString(a));
+	    }
+	    index++;
+	}
+	if (actual.hasNext()) {
+	    throw new TestFailed(message + " : expected ended after " + index
+				 + " elements, actual:  " 
+				 + toString(actual.next()));
+	}
+    }
+
+    /**
+     * Asserts that two input streams give the same bytes.  They are read
+     * in fixed-size chunks, so this can check outputs that are too big to
+     * fit in memory.  If it fails, the message gives the byte offset of 
+     * the first difference.  The streams are read up to the first 
+     * difference, and are not closed.
+     *
+     * @param  message describing the test
+     * @param  expected the expected bytes
+     * @param  actual the actual bytes
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either stream can't be read
+     */
+    public static void assertStreamsEqual(String message, 
+    					  InputStream expected,
+    					  InputStream actual)
+	throws IOException
+    {
+	byte[] e = new byte[STREAM_BUFFER];
+	byte[] a = new byte[STREAM_BUFFER];
+	long offset = 0;
+	for (;;) {
+	    int ne = readFully(expected, e);
+	    int na = readFully(actual, a);
+	    int n = Math.min(ne, na);
+	    int i = Platform.mismatch(e, a, n);
+	    if (i >= 0) {
+		throw new TestFailed(message + " : first difference at byte " 
+				     + (offset + i) 
+				     + ", expected:  " + byteName(e[i]) 
+				     + "  actual:  " + byteName(a[i]));
+	    } else if (ne != na) {
+		throw new TestFailed(message + " : " 
+				     + (ne < na ? "expected" : "actual")
+				     + " ended at byte " + (offset + n));
+	    } else if (n < STREAM_BUFFER) {
+		return;
+	    }
+	    offset += n;
+	}
+    }
+
+    /**
+     * Asserts that two readers give the same characters.  They are read
+     * in fixed-size chunks, so this can check outputs that are too big to
+     * fit in memory.  If it fails, the message gives the character offset, 
+     * line and column of the first difference.  The readers are read up
+     * to the first difference, and are not closed.
+     *
+     * @param  message describing the test
+     * @param  expected the expected text
+     * @param  actual the actual text
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either reader can't be read
+     */
+    public static void assertReadersEqual(String message, Reader expected,
+    					  Reader actual)
+	throws IOException
+    {
+	char[] e = new char[STREAM_BUFFER];
+	char[] a = new char[STREAM_BUFFER];
+	long offset = 0;
+	long line = 1;
+	long column = 1;
+	for (;;) {
+	    int ne = readFully(expected, e);
+	    int na = readFully(actual, a);
+	    int n = Math.min(ne, na);
+	    int i = Platform.mismatch(e, a, n);
+	    int end = i >= 0 ? i : n;
+	    for (int j = 0; j < end; j++) {
+		if (e[j] == '\n') {
+		    line++;
+		    column = 1;
+		} else {
+		    column++;
+		}
+	    }
+	    String where = " at character " + (offset + end) + " (line " 
+	    		   + line + ", column " + column + ")";
+	    if (i >= 0) {
+		throw new TestFailed(message + " : first difference" + where
+				     + ", expected:  " + charName(e[i]) 
+				     + "  actual:  " + charName(a[i]));
+	    } else if (ne != na) {
+		throw new TestFailed(message + " : " 
+				     + (ne < na ? "expected" : "actual")
+				     + " ended" + where);
+	    } else if (n < STREAM_BUFFER) {
+		return;
+	    }
+	    offset += n;
+	}
+    }
+
+    /**
+     * Asserts that two iterators give equal elements, in the same order.
+     *
+     * @param  expected the expected elements
+     * @param  actual the actual elements
+     * @throws TestFailed   if they aren't the same
+     * @see #assertStreamsEqual(String, Iterator, Iterator)
+     */
+    public static void assertStreamsEqual(Iterator<?> expected,
+    					  Iterator<?> actual)
+    {
+	assertStreamsEqual("", expected, actual);
+    }
+
+    /**
+     * Asserts that two input streams give the same bytes.
+     *
+     * @param  expected the expected bytes
+     * @param  actual the actual bytes
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either stream can't be read
+     * @see #assertStreamsEqual(String, InputStream, InputStream)
+     */
+    public static void assertStreamsEqual(InputStream expected,
+    					  InputStream actual)
+	throws IOException
+    {
+	assertStreamsEqual("", expected, actual);
+    }
+
+    /**
+     * Asserts that two readers give the same characters.
+     *
+     * @param  expected the expected text
+     * @param  actual the actual text
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either reader can't be read
+     * @see #assertReadersEqual(String, Reader, Reader)
+     */
+    public static void assertReadersEqual(Reader expected, Reader actual)
+	throws IOException
+    {
+	assertReadersEqual("", expected, actual);
+    }
+
+    /**
+     * Asserts that two files have the same contents.  The files are 
+     * memory-mapped a window at a time, so this can compare files of many
+     * gigabytes without reading them into the heap.  If it fails, the 
+     * message gives the byte offset of the first difference, and the 
+     * line and column it's on if the file is text.  A file counts as text
+     * if there's no zero byte before the difference.  Columns are counted
+     * in bytes.
+     *
+     * @param  message describing the test
+     * @param  expected the file with the expected contents
+     * @param  actual the file to check
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either file can't be read
+     */
+    public static void assertFilesEqual(String message, Path expected, 
+    					Path actual)
+	throws IOException
+    {
+	try (FileChannel ec = FileChannel.open(expected);
+	     FileChannel ac = FileChannel.open(actual)) 
+	{
+	    long el = ec.size();
+	    long al = ac.size();
+	    long length = Math.min(el, al);
+	    byte[] e = new byte[STREAM_BUFFER];
+	    byte[] a = new byte[STREAM_BUFFER];
+	    for (long pos = 0; pos < length; pos += MAP_WINDOW) {
+		long size = Math.min(MAP_WINDOW, length - pos);
+		ByteBuffer eb = ec.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		ByteBuffer ab = ac.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		while (eb.hasRemaining()) {
+		    int n = Math.min(eb.remaining(), STREAM_BUFFER);
+		    long offset = pos + eb.position();
+		    eb.get(e, 0, n);
+		    ab.get(a, 0, n);
+		    int i = Platform.mismatch(e, a, n);
+		    if (i >= 0) {
+			throw new TestFailed(message + " : first difference" 
+					     + where(expected, offset + i) 
+					     + ", expected:  " + byteName(e[i])
+					     + "  actual:  " + byteName(a[i]));
+		    }
+		}
+	    }
+	    if (el != al) {
+		throw new TestFailed(message + " : " 
+				     + (el < al ? "expected" : "actual") 
+				     + " ended" + where(expected, length)
+				     + "; sizes are " + el + " and " + al);
+	    }
+	}
+    }
+
+    /**
+     * Asserts that a file's contents have the given hash.  This is for
+     * checking big outputs against a recorded hash, rather than keeping 
+     * a copy of the expected file.  The file is memory-mapped a window at
+     * a time.
+     *
+     * @param  message describing the test
+     * @param  file the file to check
+     * @param  algorithm a <code>java.security.MessageDigest</code> 
+     *                   algorithm, like "SHA-256"
+     * @param  expectedHex the expected hash, in hexadecimal
+     * @throws TestFailed   if the hash is different
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the algorithm isn't available
+     */
+    public static void assertFileMatchesHash(String message, Path file,
+    					     String algorithm, 
+					     String expectedHex)
+	throws IOException
+    {
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance(algorithm);
+	} catch (NoSuchAlgorithmException ex) {
+	    throw new IllegalArgumentException(ex);
+	}
+	try (FileChannel fc = FileChannel.open(file)) {
+	    long length = fc.size();
+	    for (long pos = 0; pos < length; pos += MAP_WINDOW) {
+		long size = Math.min(MAP_WINDOW, length - pos);
+		digest.update(fc.map(FileChannel.MapMode.READ_ONLY, pos, size));
+	    }
+	}
+	StringBuilder actual = new StringBuilder();
+	for (byte b : digest.digest()) {
+	    actual.append(String.format("%02x", b & 0xff));
+	}
+	if (!actual.toString().equalsIgnoreCase(expectedHex)) {
+	    throw new TestFailed(message + " : " + algorithm + " of " + file 
+				 + " expected:  " + expectedHex
+				 + "  actual:  " + actual);
+	}
+    }
+
+    /**
+     * Asserts that two files have the same contents.
+     *
+     * @param  expected the file with the expected contents
+     * @param  actual the file to check
+     * @throws TestFailed   if they aren't the same
+     * @throws IOException if either file can't be read
+     * @see #assertFilesEqual(String, Path, Path)
+     */
+    public static void assertFilesEqual(Path expected, Path actual)
+	throws IOException
+    {
+	assertFilesEqual("", expected, actual);
+    }
+
+    /**
+     * Asserts that a file's contents have the given hash.
+     *
+     * @param  file the file to check
+     * @param  algorithm a <code>java.security.MessageDigest</code> 
+     *                   algorithm, like "SHA-256"
+     * @param  expectedHex the expected hash, in hexadecimal
+     * @throws TestFailed   if the hash is different
+     * @throws IOException if the file can't be read
+     * @see #assertFileMatchesHash(String, Path, String, String)
+     */
+    public static void assertFileMatchesHash(Path file, String algorithm,
+    					     String expectedHex)
+	throws IOException
+    {
+	assertFileMatchesHash("", file, algorithm, expectedHex);
+    }
+
+    //
+    // Mapping a whole multi-gigabyte file would use up a lot of address
+    // space, and can't be done past 2GB anyway, so files are mapped in 
+    // windows of this size.
+    //
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    //
+    // Describe a byte offset in a file, with the line and column unless a
+    // zero byte shows that it isn't text.  This reads the file again up to
+    // the offset, so it's only done once a test has failed.
+    //
+    private static String where(Path file, long offset) throws IOException {
+	String result = " at byte " + offset;
+	long line = 1;
+	long column = 1;
+	try (InputStream in = Files.newInputStream(file)) {
+	    byte[] buf = new byte[STREAM_BUFFER];
+	    long left = offset;
+	    while (left > 0) {
+		int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+		if (n < 0) {
+		    break;
+		}
+		for (int i = 0; i < n; i++) {
+		    if (buf[i] == '\n') {
+			line++;
+			column = 1;
+		    } else if (buf[i] == 0) {
+			return result;
+		    } else {
+			column++;
+		    }
+		}
+		left -= n;
+	    }
+	}
+	return result + " (line " + line + ", column " + column + ")";
+    }
+
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    //
+    // Fill buf, unless the stream ends first.  Returns the number read.
+    //
+    private static int readFully(InputStream in, byte[] buf) 
+	throws IOException 
+    {
+	int n = 0;
+	while (n < buf.length) {
+	    int got = in.read(buf, n, buf.length - n);
+	    if (got < 0) {
+		break;
+	    }
+	    n += got;
+	}
+	return n;
+    }
+
+    private static int readFully(Reader in, char[] buf) throws IOException {
+	int n = 0;
+	while (n < buf.length) {
+	    int got = in.read(buf, n, buf.length - n);
+	    if (got < 0) {
+		break;
+	    }
+	    n += got;
+	}
+	return n;
+    }
+
+    private static String byteName(byte b) {
+	return String.format("0x%02x", b & 0xff);
+    }
+
+    private static String charName(char c) {
+	if (c < ' ' || c == 0x7f) {
+	    return String.format("\\u%04x", (int) c);
+	}
+	return "'" + c + "'";
+    }
+
+    /**
+     * Asserts that two int arrays hold the same values, ignoring order.
+     * Each value has to appear the same number of times in both.  Sorted 
+     * copies are compared, so nothing is boxed.  If it fails, the message 
+     * gives the first values that differ in sorted order.
+     *
+     * @param  message describing the test
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @throws TestFailed   if they aren't the same
+     */
+    public static void 
+    assertSameElementsUnordered(String message, int[] expected, int[] actual)
+    {
+	if (expected == actual) {
+	    return;
+	} else if (expected == null || actual == null) {
+	    failUnordered(message, expected, actual);
+	}
+	int[] e = expected.clone();
+	int[] a = actual.clone();
+	Arrays.sort(e);
+	Arrays.sort(a);
+	int n = Math.min(e.length, a.length);
+	for (int i = 0; i < n; i++) {
+	    if (e[i] != a[i]) {
+		failUnordered(message, e.length, a.length, e[i], a[i]);
+	    }
+	}
+	if (e.length != a.length) {
+	    failUnordered(message, e.length, a.length,
+	    		  e.length > n ? e[n] : null, a.length > n ? a[n] : null);
+	}
+    }
+
+    /**
+     * Asserts that two long arrays hold the same values, ignoring order.
+     *
+     * @param  message describing the test
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElementsUnordered(String, int[], int[])
+     */
+    public static void 
+    assertSameElementsUnordered(String message, long[] expected, long[] actual)
+    {
+	if (expected == actual) {
+	    return;
+	} else if (expected == null || actual == null) {
+	    failUnordered(message, expected, actual);
+	}
+	long[] e = expected.clone();
+	long[] a = actual.clone();
+	Arrays.sort(e);
+	Arrays.sort(a);
+	int n = Math.min(e.length, a.length);
+	for (int i = 0; i < n; i++) {
+	    if (e[i] != a[i]) {
+		failUnordered(message, e.length, a.length, e[i], a[i]);
+	    }
+	}
+	if (e.length != a.length) {
+	    failUnordered(message, e.length, a.length,
+	    		  e.length > n ? e[n] : null, a.length > n ? a[n] : null);
+	}
+    }
+
+    /**
+     * Asserts that two double arrays hold the same values within a small
+     * tolerance, ignoring order.  Sorted copies are compared pairwise, 
+     * and two values match if they are the same as determined by
+     * <code>java.lang.Double.compare()</code> or if the absolute value
+     * of their difference is less than or equal to epsilon.
+     *
+     * @param  message describing the test
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @param  epsilon  The tolerance
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElementsUnordered(String, int[], int[])
+     */
+    public static void 
+    assertSameElementsUnordered(String message, double[] expected, 
+    				double[] actual, double epsilon)
+    {
+	if (expected == actual) {
+	    return;
+	} else if (expected == null || actual == null) {
+	    failUnordered(message, expected, actual);
+	}
+	double[] e = expected.clone();
+	double[] a = actual.clone();
+	Arrays.sort(e);
+	Arrays.sort(a);
+	int n = Math.min(e.length, a.length);
+	for (int i = 0; i < n; i++) {
+	    if (!doublesSame(e[i], a[i], epsilon)) {
+		failUnordered(message, e.length, a.length, e[i], a[i]);
+	    }
+	}
+	if (e.length != a.length) {
+	    failUnordered(message, e.length, a.length,
+	    		  e.length > n ? e[n] : null, a.length > n ? a[n] : null);
+	}
+    }
+
+    /**
+     * Asserts that two int arrays hold the same values, ignoring order.
+     *
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElementsUnordered(String, int[], int[])
+     */
+    public static void 
+    assertSameElementsUnordered(int[] expected, int[] actual) {
+	assertSameElementsUnordered("", expected, actual);
+    }
+
+    /**
+     * Asserts that two long arrays hold the same values, ignoring order.
+     *
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElementsUnordered(String, int[], int[])
+     */
+    public static void 
+    assertSameElementsUnordered(long[] expected, long[] actual) {
+	assertSameElementsUnordered("", expected, actual);
+    }
+
+    /**
+     * Asserts that two double arrays hold the same values within a small
+     * tolerance, ignoring order.
+     *
+     * @param  expected the expected values
+     * @param  actual the actual values
+     * @param  epsilon  The tolerance
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElementsUnordered(String, double[], double[], double)
+     */
+    public static void 
+    assertSameElementsUnordered(double[] expected, double[] actual,
+    				double epsilon) 
+    {
+	assertSameElementsUnordered("", expected, actual, epsilon);
+    }
+
+    private static void failUnordered(String message, Object expected,
+    				      Object actual)
+    {
+	message = "" + message
+		  + " : expected:  " + toString(expected)
+		  + "  actual:  " + toString(actual);
+	throw new TestFailed(message);
+    }
+
+    //
+    // Report the first values that differ in sorted order.  Either may be
+    // null, if that array ran out first.
+    //
+    private static void failUnordered(String message, int expectedLength, 
+    				      int actualLength, Object expected,
+    				      Object actual)
+    {
+	message = "" + message + " : ";
+	if (expectedLength != actualLength) {
+	    message += "expected " + expectedLength + " values, got " 
+	    	       + actualLength + "; ";
+	}
+	if (expected == null) {
+	    message += "extra value:  " + actual;
+	} else if (actual == null) {
+	    message += "missing value:  " + expected;
+	} else {
+	    message += "first difference in sorted order, expected:  " 
+	    	       + expected + "  actual:  " + actual;
+	}
+	throw new TestFailed(message);
+    }
+
+    /**
+     * Asserts that every element of <code>expected</code> is in 
+     * <code>actual</code>, as determined by <code>equals()</code>.  The
+     * elements are counted in a hash table, so this takes time in 
+     * proportion to the sizes of the two, rather than their product.
+     * If it fails, the message shows up to ten of the missing elements.
+     *
+     * @param  message describing the test
+     * @param  expected the elements that should be there
+     * @param  actual the elements to check
+     * @throws TestFailed   if an element is missing
+     */
+    public static void assertContainsAll(String message, Iterable<?> expected,
+    					 Iterable<?> actual)
+    {
+	Collection<?> present;
+	if (actual instanceof Set) {
+	    present = (Set<?>) actual;
+	} else {
+	    Set<Object> set = new HashSet<>(capacity(actual));
+	    for (Object o : actual) {
+		set.add(o);
+	    }
+	    present = set;
+	}
+	Map<Object, Count> missing = new LinkedHashMap<>();
+	for (Object o : expected) {
+	    if (!present.contains(o)) {
+		count(missing, o, 1);
+	    }
+	}
+	if (!missing.isEmpty()) {
+	    throw new TestFailed(message + " : " + total(missing) 
+				 + " missing"
+				 + "\nmissing:  " + describe(missing));
+	}
+    }
+
+    /**
+     * Asserts that two groups of elements are the same, ignoring order.
+     * Each element has to appear the same number of times in both, as 
+     * determined by <code>equals()</code>.  The elements are counted in a 
+     * hash table, so this takes time in proportion to the sizes of the 
+     * two.  If it fails, the message shows up to ten of the missing 
+     * elements, and up to ten of the extra ones.
+     *
+     * @param  message describing the test
+     * @param  expected the expected elements
+     * @param  actual the actual elements
+     * @throws TestFailed   if they aren't the same
+     */
+    public static void assertSameElements(String message, 
+    					  Iterable<?> expected,
+    					  Iterable<?> actual)
+    {
+	Map<Object, Count> counts = new LinkedHashMap<>(capacity(expected));
+	for (Object o : expected) {
+	    count(counts, o, 1);
+	}
+	for (Object o : actual) {
+	    count(counts, o, -1);
+	}
+	Map<Object, Count> missing = new LinkedHashMap<>();
+	Map<Object, Count> extra = new LinkedHashMap<>();
+	for (Map.Entry<Object, Count> e : counts.entrySet()) {
+	    int n = e.getValue().n;
+	    if (n > 0) {
+		count(missing, e.getKey(), n);
+	    } else if (n < 0) {
+		count(extra, e.getKey(), -n);
+	    }
+	}
+	if (missing.isEmpty() && extra.isEmpty()) {
+	    return;
+	}
+	message = "" + message + " : " + total(missing) + " missing, " 
+		  + total(extra) + " extra";
+	if (!missing.isEmpty()) {
+	    message += "\nmissing:  " + describe(missing);
+	}
+	if (!extra.isEmpty()) {
+	    message += "\nextra:    " + describe(extra);
+	}
+	throw new TestFailed(message);
+    }
+
+    /**
+     * Asserts that no element appears more than once, as determined by 
+     * <code>equals()</code>.  If it fails, the message shows up to ten 
+     * of the duplicated elements.
+     *
+     * @param  message describing the test
+     * @param  actual the elements to check
+     * @throws TestFailed   if there's a duplicate
+     */
+    public static void assertNoDuplicates(String message, Iterable<?> actual)
+    {
+	Set<Object> seen = new HashSet<>(capacity(actual));
+	Map<Object, Count> duplicates = new LinkedHashMap<>();
+	for (Object o : actual) {
+	    if (!seen.add(o)) {
+		count(duplicates, o, 1);
+	    }
+	}
+	if (!duplicates.isEmpty()) {
+	    throw new TestFailed(message + " : " + duplicates.size() 
+				 + " duplicated"
+				 + "\nextra copies:  " + describe(duplicates));
+	}
+    }
+
+    /**
+     * Asserts that every element of <code>expected</code> is in 
+     * <code>actual</code>.
+     *
+     * @param  expected the elements that should be there
+     * @param  actual the elements to check
+     * @throws TestFailed   if an element is missing
+     * @see #assertContainsAll(String, Iterable, Iterable)
+     */
+    public static void assertContainsAll(Iterable<?> expected, 
+    					 Iterable<?> actual) 
+    {
+	assertContainsAll("", expected, actual);
+    }
+
+    /**
+     * Asserts that two groups of elements are the same, ignoring order.
+     *
+     * @param  expected the expected elements
+     * @param  actual the actual elements
+     * @throws TestFailed   if they aren't the same
+     * @see #assertSameElements(String, Iterable, Iterable)
+     */
+    public static void assertSameElements(Iterable<?> expected, 
+    					  Iterable<?> actual) 
+    {
+	assertSameElements("", expected, actual);
+    }
+
+    /**
+     * Asserts that no element appears more than once.
+     *
+     * @param  actual the elements to check
+     * @throws TestFailed   if there's a duplicate
+     * @see #assertNoDuplicates(String, Iterable)
+     */
+    public static void assertNoDuplicates(Iterable<?> actual) {
+	assertNoDuplicates("", actual);
+    }
+
+    //
+    // A mutable count, so counting doesn't box an Integer for each element.
+    //
+    private static final class Count {
+	int n;
+    }
+
+    private static final int DESCRIBE_LIMIT = 10;
+
+    private static void count(Map<Object, Count> counts, Object o, int n) {
+	Count c = counts.get(o);
+	if (c == null) {
+	    c = new Count();
+	    counts.put(o, c);
+	}
+	c.n += n;
+    }
+
+    private static long total(Map<Object, Count> counts) {
+	long total = 0;
+	for (Count c : counts.values()) {
+	    total += c.n;
+	}
+	return total;
+    }
+
+    //
+    // Show the first few elements, with how many times each appears.
+    //
+    private static String describe(Map<Object, Count> counts) {
+	StringBuilder sb = new StringBuilder("[");
+	int shown = 0;
+	for (Map.Entry<Object, Count> e : counts.entrySet()) {
+	    if (shown == DESCRIBE_LIMIT) {
+		sb.append(", ... and ").append(counts.size() - shown)
+		  .append(" more");
+		break;
+	    }
+	    if (shown > 0) {
+		sb.append(", ");
+	    }
+	    sb.append(toString(e.getKey()));
+	    if (e.getValue().n > 1) {
+		sb.append(" (x").append(e.getValue().n).append(')');
+	    }
+	    shown++;
+	}
+	return sb.append(']').toString();
+    }
+
+    private static int capacity(Iterable<?> elements) {
+	if (elements instanceof Collection) {
+	    return Math.max(16, (int) (((Collection<?>) elements).size() / .75f) 
+	    			+ 1);
+	}
+	return 16;
+    }
+
+    /**
+     * Asserts that a value matches its snapshot.  The value is turned 
+     * into text, and compared with the text saved under the same name
+     * in the snapshot directory.  The first time, there's nothing saved, 
+     * so the snapshot is written, and the assertion passes.  Snapshots
+     * are compared by their length and SHA-256.  A snapshot file is only
+     * read in full the first time it's used, to check it against its own
+     * header, and if those differ.  See the "Snapshots" section of 
+     * {@link Testy}.
+     *
+     * @param  message describing the test
+     * @param  name the snapshot's name, which has to be unique
+     * @param  value the value to check.  Arrays are shown like 
+     *               <code>Arrays.deepToString()</code> does.
+     * @throws TestFailed   if the value doesn't match
+     * @throws IOException if the snapshot can't be read or written
+     */
+    public static void assertMatchesSnapshot(String message, String name,
+    					     Object value)
+	throws IOException
+    {
+	String text = (value instanceof String) ? (String) value 
+						: toString(value);
+	String difference = Snapshots.check(name, text);
+	if (difference != null) {
+	    throw new TestFailed(message + " : " + difference);
+	}
+    }
+
+    /**
+     * Asserts that a value matches its snapshot.
+     *
+     * @param  name the snapshot's name, which has to be unique
+     * @param  value the value to check
+     * @throws TestFailed   if the value doesn't match
+     * @throws IOException if the snapshot can't be read or written
+     * @see #assertMatchesSnapshot(String, String, Object)
+     */
+    public static void assertMatchesSnapshot(String name, Object value)
+	throws IOException
+    {
+	assertMatchesSnapshot("snapshot " + name, name, value);
+    }
+
+    /**
+     * Asserts that two object graphs are equal, field by field.  Unlike
+     * {@link #assertEquals(String, Object, Object)}, this looks inside 
+     * objects using the fields registered in <code>fields</code>, it 
+     * copes with cycles, and a failure says where the difference is, like
+     * <code>orders[4].lines[17].price</code>.  See {@link DeepCompare}.
+     *
+     * @param  message describing the test
+     * @param  fields the fields to compare for each class
+     * @param  expected the expected value
+     * @param  actual the actual value
+     * @throws TestFailed   if they differ
+     */
+    public static void assertDeepEquals(String message, DeepCompare fields,
+    					Object expected, Object actual)
+    {
+	String difference = fields.compare(expected, actual);
+	if (difference != null) {
+	    throw new TestFailed(message + " : " + difference);
+	}
+    }
+
+    /**
+     * Asserts that two object graphs are equal, comparing arrays, Lists
+     * and Maps element by element, and everything else with 
+     * <code>equals()</code>.
+     *
+     * @param  message describing the test
+     * @param  expected the expected value
+     * @param  actual the actual value
+     * @throws TestFailed   if they differ
+     * @see #assertDeepEquals(String, DeepCompare, Object, Object)
+     */
+    public static void assertDeepEquals(String message, Object expected,
+    					Object actual)
+    {
+	assertDeepEquals(message, new DeepCompare(), expected, actual);
+    }
+
+    /**
+     * Asserts that two object graphs are equal, field by field.
+     *
+     * @param  fields the fields to compare for each class
+     * @param  expected the expected value
+     * @param  actual the actual value
+     * @throws TestFailed   if they differ
+     * @see #assertDeepEquals(String, DeepCompare, Object, Object)
+     */
+    public static void assertDeepEquals(DeepCompare fields, Object expected,
+    					Object actual)
+    {
+	assertDeepEquals("", fields, expected, actual);
+    }
+
+    /**
+     * Asserts that a condition becomes true within a time limit.  This is
+     * for testing things that happen asynchronously.  The condition is
+     * checked over and over, at first spinning for a moment, and then 
+     * parking the thread for longer and longer, up to 100 ms at a time,
+     * so waiting doesn't use up a CPU.  It returns as soon as the 
+     * condition is seen to be true.  If the condition throws 
+     * {@link TestFailed}, it's treated as false.
+     *
+     * @param  message describing the test
+     * @param  timeoutMillis the time limit, in milliseconds
+     * @param  condition condition to be checked
+     * @throws TestFailed   if the condition isn't true within the limit
+     */
+    public static void assertEventually(String message, long timeoutMillis,
+    					BooleanSupplier condition)
+    {
+	Objects.requireNonNull(condition);
+	eventually(message, timeoutMillis, () -> {
+	    if (!condition.getAsBoolean()) {
+		throw new TestFailed(message + " : condition is false");
+	    }
+	});
+    }
+
+    /**
+     * Asserts that a block of assertions passes within a time limit.  
+     * The block is run over and over, as described in
+     * {@link #assertEventually(String, long, BooleanSupplier)}, until
+     * it doesn't throw {@link TestFailed}.  If the time runs out, the 
+     * last failure is given as the cause.  Any other exception fails the
+     * assertion right away.
+     *
+     * @param  message describing the test
+     * @param  timeoutMillis the time limit, in milliseconds
+     * @param  block the assertions to be checked
+     * @throws TestFailed   if the block doesn't pass within the limit
+     */
+    public static void assertEventually(String message, long timeoutMillis,
+    					TestRunnable block)
+    {
+	Objects.requireNonNull(block);
+	eventually(message, timeoutMillis, block);
+    }
+
+    /**
+     * Asserts that a condition becomes true within a time limit.
+     *
+     * @param  timeoutMillis the time limit, in milliseconds
+     * @param  condition condition to be checked
+     * @throws TestFailed   if the condition isn't true within the limit
+     * @see #assertEventually(String, long, BooleanSupplier)
+     */
+    public static void assertEventually(long timeoutMillis, 
+    					BooleanSupplier condition) 
+    {
+	assertEventually("", timeoutMillis, condition);
+    }
+
+    /**
+     * Asserts that a block of assertions passes within a time limit.
+     *
+     * @param  timeoutMillis the time limit, in milliseconds
+     * @param  block the assertions to be checked
+     * @throws TestFailed   if the block doesn't pass within the limit
+     * @see #assertEventually(String, long, TestRunnable)
+     */
+    public static void assertEventually(long timeoutMillis, 
+    					TestRunnable block) 
+    {
+	assertEventually("", timeoutMillis, block);
+    }
+
+    private static final int EVENTUALLY_SPINS = 100;
+    private static final long EVENTUALLY_MIN_PARK = 10000;	 // 10 us
+    private static final long EVENTUALLY_MAX_PARK = 100000000;	 // 100 ms
+
+    private static void eventually(String message, long timeoutMillis,
+    				   TestRunnable block)
+    {
+	long deadline = System.nanoTime() + timeoutMillis * 1000000;
+	long park = EVENTUALLY_MIN_PARK;
+	TestFailed last;
+	for (int tries = 0; ; tries++) {
+	    try {
+		block.run();
+		return;
+	    } catch (TestFailed ex) {
+		last = ex;
+	    } catch (RuntimeException | Error ex) {
+		throw ex;
+	    } catch (Throwable t) {
+		throw new TestFailed(message + " : unexpected exception", t);
+	    }
+	    long remaining = deadline - System.nanoTime();
+	    if (remaining <= 0) {
+		break;
+	    } else if (tries < EVENTUALLY_SPINS) {
+		Platform.onSpinWait();
+	    } else {
+		LockSupport.parkNanos(Math.min(park, remaining));
+		park = Math.min(park * 2, EVENTUALLY_MAX_PARK);
+		if (Thread.interrupted()) {
+		    Thread.currentThread().interrupt();
+		    throw new TestFailed(message + " : interrupted", last);
+		}
+	    }
+	}
+	throw new TestFailed(message + " : still failing after " 
+			     + timeoutMillis + " ms", last);
+    }
+
 
     //
     // toString that will do something reasonable with primitive arrays,
     // including multi-dimensional primitve arrays.
     //
-    private static String toString(Object o) {
+    static String toString(Object o) {
 	if (o instanceof Object[]) {
 	    // This handles multi-dimensional primitive arrays,
 	    // like int[][]
@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Runs asynchronous tests.  See the "Asynchronous Tests" section of
+ * {@link Testy}.  Starting a test takes a permit from a semaphore, and the
+ * test gives it back when it finishes, so no more than the limit are ever
+ * in flight.  A test finishes when its stage completes, or when its 
+ * timeout goes off, whichever happens first.
+ */
+final class AsyncRunner {
+
+    private final AsyncTestRunnable[] tests;
+    private final TestRunnable[] gradingTests;
+    private final BatchGrader.Result grading = BatchGrader.current();
+    private final long timeout;
+    private final Semaphore permits;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicIntegerArray finished;
+    private final Throwable[] failures;
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final CountDownLatch done;
+
+    private AsyncRunner(AsyncTestRunnable[] tests, int limit, long timeout,
+    			int selected) 
+    {
+	this.tests = tests;
+	this.timeout = timeout;
+	this.permits = new Semaphore(limit);
+	this.finished = new AtomicIntegerArray(tests.length);
+	this.failures = new Throwable[tests.length];
+	this.done = new CountDownLatch(selected);
+	if (timeout > 0) {
+	    timer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "Testy async timeouts");
+		t.setDaemon(true);
+		return t;
+	    });
+	    timer.setRemoveOnCancelPolicy(true);
+	} else {
+	    timer = null;
+	}
+	if (GradingSupport.ENABLED) {
+	    gradingTests = new TestRunnable[tests.length];
+	    for (int i = 0; i < tests.length; i++) {
+		final AsyncTestRunnable test = tests[i];
+		gradingTests[i] = new TestRunnable() {
+		    @Override
+		    public void run() throws Throwable {
+			test.start().toCompletableFuture().get();
+		    }
+		    @Override
+		    public String getName() {
+			return test.getName();
+		    }
+		};
+	    }
+	} else {
+	    gradingTests = null;
+	}
+    }
+
+    static int run(String[] args, AsyncTestRunnable[] tests) {
+	int limit = Integer.getInteger("testy.asyncLimit", 1000);
+	if (limit <= 0) {
+	    throw new IllegalArgumentException("testy.asyncLimit:  " + limit);
+	}
+	long timeout = Long.getLong("testy.asyncTimeout", 0);
+	TestFilter filter = TestFilter.create(args);
+	boolean[] selected = new boolean[tests.length];
+	int count = 0;
+	for (int i = 0; i < tests.length; i++) {
+	    selected[i] = filter == null || filter.accepts(tests[i].getName());
+	    if (selected[i]) {
+		count++;
+	    }
+	}
+	AsyncRunner runner = new AsyncRunner(tests, limit, timeout, count);
+	Snapshots.runStarted();
+	try {
+	    runner.runAll(selected);
+	} finally {
+	    if (runner.timer != null) {
+		runner.timer.shutdownNow();
+	    }
+	}
+
+	int failed = 0;
+	for (int i = 0; i < tests.length; i++) {
+	    if (runner.failures[i] != null) {
+		failed++;
+		Testy.reportFailure(tests[i].getName(), runner.failures[i]);
+	    }
+	}
+	int passed = count - failed;
+	Snapshots.runFinished(failed == 0 && count == tests.length);
+	System.out.println("" + tests.length + " total tests:");
+	System.out.println("    " + failed + " failed.");
+	if (runner.timedOut.get() > 0) {
+	    System.out.println("        (" + runner.timedOut.get() 
+	    		       + " timed out.)");
+	}
+	System.out.println("    " + passed + " passed.");
+	if (filter != null) {
+	    System.out.println("    " + (tests.length - count) + " skipped.");
+	}
+	if (GradingSupport.ENABLED) {
+	    GradingSupport.fromTestyRun(runner.gradingTests, passed, failed);
+	}
+	if (runner.grading != null) {
+	    runner.grading.add(passed, failed);
+	}
+	return failed;
+    }
+
+    private void runAll(boolean[] selected) {
+	for (int i = 0; i < tests.length; i++) {
+	    if (selected[i]) {
+		permits.acquireUninterruptibly();
+		start(i);
+	    }
+	}
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		done.await();
+		break;
+	    } catch (InterruptedException ex) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void start(final int i) {
+	final long startTime = System.nanoTime();
+	final CompletionStage<?> stage;
+	try {
+	    stage = tests[i].start();
+	    if (stage == null) {
+		throw new TestFailed("start() returned null");
+	    }
+	} catch (Throwable t) {
+	    finish(i, t, startTime, false);
+	    return;
+	}
+	final ScheduledFuture<?> timeoutTask;
+	if (timer == null) {
+	    timeoutTask = null;
+	} else {
+	    timeoutTask = timer.schedule(() -> {
+		TestFailed t = new TestFailed("Timed out after " + timeout 
+					      + " ms");
+		if (finish(i, t, startTime, true)) {
+		    try {
+			stage.toCompletableFuture().cancel(true);
+		    } catch (UnsupportedOperationException ignored) {
+		    }
+		}
+	    }, timeout, TimeUnit.MILLISECONDS);
+	}
+	stage.whenComplete((value, t) -> {
+	    if (timeoutTask != null) {
+		timeoutTask.cancel(false);
+	    }
+	    finish(i, unwrap(t), startTime, false);
+	});
+    }
+
+    //
+    // Record how tests[i] went, unless it's already finished.  Returns 
+    // true if this was the first outcome.  Everything is recorded before
+    // done is counted down, since run() reports it as soon as the last
+    // test is done.
+    //
+    private boolean finish(int i, Throwable failure, long startTime,
+    			   boolean timeout) 
+    {
+	if (!finished.compareAndSet(i, 0, 1)) {
+	    return false;
+	}
+	failures[i] = failure;
+	if (timeout) {
+	    timedOut.incrementAndGet();
+	}
+	long duration = System.nanoTime() - startTime;
+	if (GradingSupport.ENABLED) {
+	    GradingSupport.fromTestyTest(gradingTests, i, duration, failure);
+	}
+	if (grading != null) {
+	    grading.testDone(tests[i].getName(), i, duration, failure);
+	}
+	permits.release();
+	done.countDown();
+	return true;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+	while ((t instanceof CompletionException 
+		|| t instanceof ExecutionException) 
+	       && t.getCause() != null) 
+	{
+	    t = t.getCause();
+	}
+	return t;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An asynchronous test.  It starts some work, and returns a stage that
+ * completes when the work is done.  The test fails if the stage completes
+ * exceptionally, or if <code>start()</code> throws.  A lambda works well
+ * for this, viz:
+ * <pre>
+ *
+ *     Testy.runAsync(
+ *          () -&gt; service.lookup("x").thenAccept(v -&gt; assertEquals(1, v)),
+ *          () -&gt; service.lookup("y").thenAccept(v -&gt; assertEquals(2, v))
+ *     );
+ * </pre>
+ *
+ * @see Testy#runAsync(String[], AsyncTestRunnable...)
+ */
+@FunctionalInterface
+public interface AsyncTestRunnable {
+
+    /**
+     * Start the test.
+     *
+     * @return  a stage that completes when the test is done
+     * @throws  Throwable  to indicate a test failure
+     */
+    public CompletionStage<?> start() throws Throwable;
+
+    /**
+     * Give the name of this test, which is used to report it, and to
+     * select it with the filters described in {@link Testy}.  By default,
+     * tests don't have a name.  A named test can be made with
+     * {@link Testy#asyncTest(String, AsyncTestRunnable)}.
+     *
+     * @return  the name of the test, or null if it doesn't have one
+     */
+    public default String getName() {
+	return null;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Grades many submissions in a single JVM.  Each submission is a
+ * directory or jar file containing the same main class, which calls
+ * {@link Testy#run(TestRunnable...) Testy.run()} on its tests.  Every
+ * submission is loaded into its own child class loader, with Testy itself
+ * shared from the parent, so the submissions don't see each other's
+ * classes.  The suites are run concurrently on a pool of worker threads,
+ * and the results of all of the <code>Testy.run()</code> calls made on
+ * behalf of a submission are collected for it, including how each test
+ * went.  A submission's score adds up the weights of the tests that 
+ * passed, which are given by {@link #weight(String, double)}.  When a 
+ * submission is done, its class loader is closed and dropped, so that its
+ * classes can be unloaded.
+ * <p>
+ * Some of Testy's features keep state for the whole JVM, which the
+ * submissions would share:  coverage (<code>testy.coverage</code>), test
+ * impact (<code>testy.impact</code>), the flaky test history 
+ * (<code>testy.flakyHistory</code>), and pruning snapshots 
+ * (<code>testy.updateSnapshots=prune</code>).  When any of those is on,
+ * submissions are graded one at a time, so their results don't get mixed
+ * up.
+ * <p>
+ * The submissions' classes must not also be on the grader's class path,
+ * or the parent class loader will find them first.  Output from the
+ * suites is not separated, so it's best to discard it.  Note that a
+ * submission that calls <code>System.exit()</code> will end the whole
+ * batch.
+ * <p>
+ * This can be run from the command line, viz:
+ * <pre>
+ *
+ *     java -cp testy.jar edu.calpoly.testy.BatchGrader [-threads n] \
+ *          MainClass submission1 submission2 ...
+ * </pre>
+ */
+public final class BatchGrader {
+
+    private static final InheritableThreadLocal<Result> current 
+	= new InheritableThreadLocal<>();
+
+    //
+    // Grading one submission at a time is enforced with this lock, so 
+    // concurrent batches are covered too.
+    //
+    private static final Object sequentialLock = new Object();
+
+    private final String mainClass;
+    private final int threads;
+    private final Map<String, Double> weights = new HashMap<>();
+
+    /**
+     * How one test went, for one submission.
+     */
+    public static final class TestResult {
+	private final String name;
+	private final int index;
+	private final long durationNanos;
+	private final Throwable failure;
+
+	TestResult(String name, int index, long durationNanos, 
+		   Throwable failure) 
+	{
+	    this.name = name;
+	    this.index = index;
+	    this.durationNanos = durationNanos;
+	    this.failure = failure;
+	}
+
+	/**
+	 * @return the test's name, or null if it doesn't have one
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * @return the test's index in the tests given to 
+	 *	   <code>Testy.run()</code>
+	 */
+	public int getIndex() {
+	    return index;
+	}
+
+	/**
+	 * @return how long the test took to run
+	 */
+	public long getDurationNanos() {
+	    return durationNanos;
+	}
+
+	/**
+	 * @return the exception that failed the test, or null if it passed
+	 */
+	public Throwable getFailure() {
+	    return failure;
+	}
+
+	@Override
+	public String toString() {
+	    return ((name == null) ? ("#" + index) : name) + ":  " 
+	    	   + ((failure == null) ? "passed" : ("failed, " + failure));
+	}
+    }
+
+    /**
+     * The outcome of grading one submission.
+     */
+    public static final class Result {
+	private final File submission;
+	private final Map<String, Double> weights;
+	private final AtomicInteger passed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final DoubleAdder score = new DoubleAdder();
+	private final Queue<TestResult> tests = new ConcurrentLinkedQueue<>();
+	private volatile Throwable error;
+
+	Result(File submission, Map<String, Double> weights) {
+	    this.submission = submission;
+	    this.weights = weights;
+	}
+
+	/**
+	 * @return the directory or jar file that was graded
+	 */
+	public File getSubmission() {
+	    return submission;
+	}
+
+	/**
+	 * @return the number of tests that passed, over all of the
+	 *	   submission's calls to <code>Testy.run()</code>
+	 */
+	public int getPassed() {
+	    return passed.get();
+	}
+
+	/**
+	 * @return the number of tests that failed, over all of the
+	 *	   submission's calls to <code>Testy.run()</code>
+	 */
+	public int getFailed() {
+	    return failed.get();
+	}
+
+	/**
+	 * @return the total weight of the tests that passed, over all of 
+	 *	   the submission's calls to <code>Testy.run()</code>
+	 * @see BatchGrader#weight(String, double)
+	 */
+	public double getScore() {
+	    return score.sum();
+	}
+
+	/**
+	 * @return how each test went, in the order they finished
+	 */
+	public List<TestResult> getTests() {
+	    return new ArrayList<>(tests);
+	}
+
+	/**
+	 * @return the exception that prevented the submission from
+	 *	   running to completion, or null if it ran normally
+	 */
+	public Throwable getError() {
+	    return error;
+	}
+
+	//
+	// Called by Testy as each test finishes.  Tests may finish on 
+	// several threads at once, e.g. asynchronous ones.
+	//
+	void testDone(String name, int index, long durationNanos, 
+		      Throwable failure) 
+	{
+	    tests.add(new TestResult(name, index, durationNanos, failure));
+	    if (failure == null) {
+		Double w = (name == null) ? null : weights.get(name);
+		score.add((w == null) ? 1.0 : w);
+	    }
+	}
+
+	void add(int passed, int failed) {
+	    this.passed.addAndGet(passed);
+	    this.failed.addAndGet(failed);
+	}
+
+	@Override
+	public String toString() {
+	    String s = "" + submission + ":  " + getPassed() + " passed, "
+		       + getFailed() + " failed";
+	    if (error != null) {
+		s += ", " + error;
+	    }
+	    return s;
+	}
+    }
+
+    /**
+     * Create a grader that runs each submission's main class.
+     *
+     * @param mainClass	The fully-qualified name of the class whose 
+     *			<code>main(String[])</code> runs the tests
+     * @param threads	The number of submissions to grade at once
+     */
+    public BatchGrader(String mainClass, int threads) {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("threads:  " + threads);
+	}
+	this.mainClass = mainClass;
+	this.threads = threads;
+    }
+
+    /**
+     * Give the weight of the named test in each submission's score.
+     * Tests that aren't given a weight, including ones without names,
+     * count as 1.
+     *
+     * @param testName	The name of the test
+     * @param weight	How much it's worth
+     * @return this grader
+     * @see Result#getScore()
+     */
+    public BatchGrader weight(String testName, double weight) {
+	weights.put(testName, weight);
+	return this;
+    }
+
+    /**
+     * Grade the given submissions, and wait for them all to finish.
+     *
+     * @param submissions	Directories or jar files holding the 
+     *				compiled submissions
+     * @return the results, in the same order as the submissions
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Result> grade(List<File> submissions) 
+	    throws InterruptedException 
+    {
+	String shared = sharedState();
+	if (shared != null && threads > 1) {
+	    System.err.println("Grading one submission at a time, since " 
+	    		       + shared + " keeps state they'd share.");
+	}
+	Map<String, Double> w = new HashMap<>(weights);
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    List<Future<Result>> futures = new ArrayList<>();
+	    for (File s : submissions) {
+		futures.add(pool.submit(() -> {
+		    if (shared == null) {
+			return gradeOne(s, w);
+		    }
+		    synchronized (sequentialLock) {
+			return gradeOne(s, w);
+		    }
+		}));
+	    }
+	    List<Result> results = new ArrayList<>();
+	    for (Future<Result> f : futures) {
+		try {
+		    results.add(f.get());
+		} catch (ExecutionException ex) {
+		    // gradeOne() catches everything, so this can't happen.
+		    throw new IllegalStateException(ex.getCause());
+		}
+	    }
+	    return results;
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    //
+    // Return the setting that makes submissions share state in Testy, or
+    // null if they don't.
+    //
+    private static String sharedState() {
+	for (String p : new String[] { "testy.coverage", "testy.impact",
+				       "testy.flakyHistory" }) 
+	{
+	    if (System.getProperty(p) != null) {
+		return p;
+	    }
+	}
+	if ("prune".equalsIgnoreCase(
+		System.getProperty("testy.updateSnapshots"))) 
+	{
+	    return "testy.updateSnapshots=prune";
+	}
+	return null;
+    }
+
+    private Result gradeOne(File submission, Map<String, Double> weights) {
+	Result result = new Result(submission, weights);
+	Thread thread = Thread.currentThread();
+	ClassLoader oldContext = thread.getContextClassLoader();
+	current.set(result);
+	try (URLClassLoader loader = new URLClassLoader(
+		    new URL[] { submission.toURI().toURL() },
+		    BatchGrader.class.getClassLoader())) 
+	{
+	    thread.setContextClassLoader(loader);
+	    Class<?> cl = Class.forName(mainClass, true, loader);
+	    Method main = cl.getMethod("main", String[].class);
+	    main.invoke(null, (Object) new String[0]);
+	} catch (InvocationTargetException ex) {
+	    result.error = ex.getCause();
+	} catch (Throwable t) {
+	    result.error = t;
+	} finally {
+	    thread.setContextClassLoader(oldContext);
+	    current.remove();
+	}
+	return result;
+    }
+
+    //
+    // Called by Testy when a run starts, to find out which submission, if
+    // any, the current thread is working on.
+    //
+    static Result current() {
+	return current.get();
+    }
+
+    /**
+     * Grade the submissions given on the command line, and print the
+     * results.
+     *
+     * @param args	<code>[-threads n] MainClass submission...</code>
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+	int threads = Runtime.getRuntime().availableProcessors();
+	int i = 0;
+	if (args.length > 1 && "-threads".equals(args[0])) {
+	    threads = Integer.parseInt(args[1]);
+	    i = 2;
+	}
+	if (args.length - i < 2) {
+	    System.err.println("Usage:  java edu.calpoly.testy.BatchGrader "
+			       + "[-threads n] MainClass submission...");
+	    System.exit(1);
+	}
+	String mainClass = args[i++];
+	List<File> submissions = new ArrayList<>();
+	for (; i < args.length; i++) {
+	    submissions.add(new File(args[i]));
+	}
+	List<Result> results 
+	    = new BatchGrader(mainClass, threads).grade(submissions);
+	for (Result r : results) {
+	    System.out.println(r);
+	}
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Method and line coverage, from the probes that {@link Agent} puts into
+ * each class.  It's turned on with system properties:
+ * <ul>
+ *   <li><code>testy.coverage</code> &mdash; the file to write coverage
+ *	 to, when the JVM exits.
+ *   <li><code>testy.coveragePerTest</code> &mdash; if <code>true</code>,
+ *	 also record which methods and lines each test runs.
+ * </ul>
+ * viz:
+ * <pre>
+ *
+ *     java -javaagent:testy.jar -Dtesty.coverage=coverage.bin ...
+ *     java -cp testy.jar edu.calpoly.testy.Coverage coverage.bin
+ * </pre>
+ * The second command prints a report of the methods that were called
+ * and the lines that were run, class by class.  With <code>-tests</code> 
+ * before the file name, it lists the methods each test called instead.
+ * <p>
+ * A line counts as run when its first instruction is, so a line that's
+ * only partly run, like one with a condition that's never true, still
+ * counts.  Branches aren't measured on their own.  Lines come from the
+ * class file's line numbers, so a class compiled with 
+ * <code>-g:none</code> only has method coverage.  A probe is just an
+ * array store, so the tests run at close to full speed.
+ */
+public final class Coverage {
+
+    private static final int MAGIC = 0x54435631;	// "TCV1"
+    private static final Object lock = new Object();
+    private static final Map<String, Map<Integer, boolean[]>> perTest
+	= new LinkedHashMap<>();
+    private static boolean enabled;
+    private static boolean warnedShadowed;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Long> hashes = new ArrayList<>();
+    private final List<String[]> methods = new ArrayList<>();
+    private final List<boolean[]> hits = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+    private final Map<String, Map<Integer, boolean[]>> tests 
+	= new LinkedHashMap<>();
+
+    private Coverage() {
+    }
+
+    //
+    // Called by the agent, to write the coverage file when the JVM exits,
+    // if it's been asked for.
+    //
+    static void install() {
+	final String file = System.getProperty("testy.coverage");
+	if (file == null) {
+	    return;
+	}
+	enabled = true;
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    Coverage c = collect();
+	    try {
+		c.write(file);
+	    } catch (IOException ex) {
+		System.err.println("Can't write " + file + ":  " + ex);
+		return;
+	    }
+	    System.err.println("Coverage written to " + file + ":  " 
+	    		       + describe(c.total()));
+	}, "Testy coverage"));
+    }
+
+    //
+    // True if Testy should record the methods each test calls.
+    //
+    static boolean isPerTest() {
+	if (!Boolean.getBoolean("testy.coveragePerTest")) {
+	    return false;
+	} else if (Probes.isShadowed()) {
+	    synchronized(lock) {
+		if (!warnedShadowed) {
+		    warnedShadowed = true;
+		    System.err.println("testy.coveragePerTest can't be used, "
+		    		   + "because Testy was loaded by a different "
+				   + "class loader from the agent's.");
+		}
+	    }
+	    return false;
+	}
+	return enabled;
+    }
+
+    //
+    // Record what the test with the given key called since the probes
+    // were last reset.
+    //
+    static void recordTest(String key) {
+	Map<Integer, boolean[]> snapshot = Probes.snapshot(false);
+	synchronized(lock) {
+	    perTest.put(key, snapshot);
+	}
+    }
+
+    //
+    // Collect everything so far.  A class that was loaded more than once
+    // is merged, as long as it has the same class file.
+    //
+    static Coverage collect() {
+	Coverage c = new Coverage();
+	Map<Integer, Integer> fileIndex = new HashMap<>();
+	for (Map.Entry<Integer, boolean[]> e : Probes.snapshot(true).entrySet()) {
+	    int id = e.getKey();
+	    fileIndex.put(id, c.add(Probes.getClassName(id), Probes.getHash(id),
+	    			    Probes.getMethods(id), e.getValue()));
+	}
+	synchronized(lock) {
+	    for (Map.Entry<String, Map<Integer, boolean[]>> t 
+		 : perTest.entrySet()) 
+	    {
+		Map<Integer, boolean[]> m = new LinkedHashMap<>();
+		for (Map.Entry<Integer, boolean[]> e : t.getValue().entrySet()) {
+		    Integer i = fileIndex.get(e.getKey());
+		    if (i != null) {
+			or(m, i, e.getValue());
+		    }
+		}
+		c.tests.put(t.getKey(), m);
+	    }
+	}
+	return c;
+    }
+
+    private int add(String name, long hash, String[] classMethods, 
+    		    boolean[] classHits) 
+    {
+	String key = name + "@" + hash;
+	Integer i = index.get(key);
+	if (i == null) {
+	    i = names.size();
+	    index.put(key, i);
+	    names.add(name);
+	    hashes.add(hash);
+	    methods.add(classMethods);
+	    hits.add(new boolean[classMethods.length]);
+	}
+	boolean[] h = hits.get(i);
+	for (int j = 0; j < h.length; j++) {
+	    h[j] |= classHits[j];
+	}
+	return i;
+    }
+
+    private static void or(Map<Integer, boolean[]> m, int i, boolean[] hit) {
+	boolean[] old = m.get(i);
+	if (old == null) {
+	    m.put(i, hit.clone());
+	} else {
+	    for (int j = 0; j < old.length; j++) {
+		old[j] |= hit[j];
+	    }
+	}
+    }
+
+    //
+    // The file has the classes, each with its methods and a bitmap of the
+    // ones that were called, followed by the tests, each with a bitmap for
+    // each class it used.
+    //
+    void write(String file) throws IOException {
+	try (DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(file))))
+	{
+	    out.writeInt(MAGIC);
+	    out.writeInt(names.size());
+	    for (int i = 0; i < names.size(); i++) {
+		out.writeUTF(names.get(i));
+		out.writeLong(hashes.get(i));
+		String[] m = methods.get(i);
+		out.writeShort(m.length);
+		for (String method : m) {
+		    out.writeUTF(method);
+		}
+		writeBits(out, hits.get(i));
+	    }
+	    out.writeInt(tests.size());
+	    for (Map.Entry<String, Map<Integer, boolean[]>> t 
+		 : tests.entrySet()) 
+	    {
+		out.writeUTF(t.getKey());
+		out.writeInt(t.getValue().size());
+		for (Map.Entry<Integer, boolean[]> e : t.getValue().entrySet()) {
+		    out.writeInt(e.getKey());
+		    writeBits(out, e.getValue());
+		}
+	    }
+	}
+    }
+
+    private static Coverage read(String file) throws IOException {
+	Coverage c = new Coverage();
+	try (DataInputStream in = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(file))))
+	{
+	    if (in.readInt() != MAGIC) {
+		throw new IOException("Not a Testy coverage file");
+	    }
+	    int classes = in.readInt();
+	    for (int i = 0; i < classes; i++) {
+		String name = in.readUTF();
+		long hash = in.readLong();
+		String[] m = new String[in.readUnsignedShort()];
+		for (int j = 0; j < m.length; j++) {
+		    m[j] = in.readUTF();
+		}
+		c.add(name, hash, m, readBits(in, m.length));
+	    }
+	    int tests = in.readInt();
+	    for (int i = 0; i < tests; i++) {
+		String key = in.readUTF();
+		Map<Integer, boolean[]> m = new LinkedHashMap<>();
+		int n = in.readInt();
+		for (int j = 0; j < n; j++) {
+		    int cl = in.readInt();
+		    m.put(cl, readBits(in, c.methods.get(cl).length));
+		}
+		c.tests.put(key, m);
+	    }
+	}
+	return c;
+    }
+
+    private static void writeBits(DataOutputStream out, boolean[] bits) 
+	    throws IOException 
+    {
+	byte[] b = new byte[(bits.length + 7) / 8];
+	for (int i = 0; i < bits.length; i++) {
+	    if (bits[i]) {
+		b[i / 8] |= 1 << (i % 8);
+	    }
+	}
+	out.write(b);
+    }
+
+    private static boolean[] readBits(DataInputStream in, int length) 
+	    throws IOException
+    {
+	byte[] b = new byte[(length + 7) / 8];
+	in.readFully(b);
+	boolean[] bits = new boolean[length];
+	for (int i = 0; i < length; i++) {
+	    bits[i] = (b[i / 8] & (1 << (i % 8))) != 0;
+	}
+	return bits;
+    }
+
+    //
+    // A probe is for a line if it's just the line number, like "42", and
+    // for a method if it has the method's descriptor, like "get(I)V".
+    //
+    private static boolean isLine(String probe) {
+	return probe.indexOf('(') < 0;
+    }
+
+    //
+    // Returns { methods called, methods, lines run, lines }
+    //
+    private int[] total() {
+	int[] result = new int[4];
+	for (int i = 0; i < names.size(); i++) {
+	    add(result, methods.get(i), hits.get(i));
+	}
+	return result;
+    }
+
+    private static void add(int[] counts, String[] probes, boolean[] hit) {
+	for (int j = 0; j < probes.length; j++) {
+	    int k = isLine(probes[j]) ? 2 : 0;
+	    if (hit[j]) {
+		counts[k]++;
+	    }
+	    counts[k + 1]++;
+	}
+    }
+
+    private static String describe(int[] counts) {
+	String result = describe(counts[0], counts[1], "methods");
+	if (counts[3] > 0) {
+	    result += ", " + describe(counts[2], counts[3], "lines");
+	}
+	return result;
+    }
+
+    private static String describe(int covered, int count, String what) {
+	int percent = (count == 0) ? 100 : (int) (100L * covered / count);
+	return covered + " of " + count + " " + what + " (" + percent + "%)";
+    }
+
+    private void report(PrintStream out) {
+	out.println("Coverage:");
+	for (int i = 0; i < names.size(); i++) {
+	    boolean[] h = hits.get(i);
+	    String[] m = methods.get(i);
+	    int[] counts = new int[4];
+	    add(counts, m, h);
+	    out.println("    " + names.get(i).replace('/', '.') + ":  " 
+	    		+ describe(counts));
+	    StringBuilder notRun = new StringBuilder();
+	    for (int j = 0; j < m.length; j++) {
+		if (h[j]) {
+		    continue;
+		} else if (!isLine(m[j])) {
+		    out.println("        not called:  " + m[j]);
+		} else {
+		    // Lines are in order, so a run of them is shown as one
+		    // range, like "12-15".
+		    int k = j;
+		    while (k + 1 < m.length && !h[k + 1] 
+		    	   && Integer.parseInt(m[k + 1]) 
+			      == Integer.parseInt(m[k]) + 1)
+		    {
+			k++;
+		    }
+		    notRun.append(notRun.length() == 0 ? "" : ", ")
+		    	  .append(m[j]).append(k > j ? "-" + m[k] : "");
+		    j = k;
+		}
+	    }
+	    if (notRun.length() > 0) {
+		out.println("        lines not run:  " + notRun);
+	    }
+	}
+	out.println("Total:  " + describe(total()));
+    }
+
+    private void reportTests(PrintStream out) {
+	if (tests.isEmpty()) {
+	    out.println("No tests were recorded.  "
+	    		+ "Please run with -Dtesty.coveragePerTest=true.");
+	}
+	for (Map.Entry<String, Map<Integer, boolean[]>> t : tests.entrySet()) {
+	    out.println("Test " + t.getKey() + " called:");
+	    for (Map.Entry<Integer, boolean[]> e : t.getValue().entrySet()) {
+		String cl = names.get(e.getKey()).replace('/', '.');
+		String[] m = methods.get(e.getKey());
+		boolean[] h = e.getValue();
+		for (int j = 0; j < m.length; j++) {
+		    if (h[j] && !isLine(m[j])) {
+			out.println("    " + cl + "." + m[j]);
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Print a report from a coverage file.
+     *
+     * @param args	<code>[-tests] file</code>
+     * @throws IOException if the file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+	boolean byTest = args.length == 2 && "-tests".equals(args[0]);
+	if (args.length != (byTest ? 2 : 1)) {
+	    System.err.println("Usage:  java edu.calpoly.testy.Coverage "
+	    		       + "[-tests] file");
+	    System.exit(1);
+	}
+	Coverage c = read(args[args.length - 1]);
+	if (byTest) {
+	    c.reportTests(System.out);
+	} else {
+	    c.report(System.out);
+	}
+    }
+}
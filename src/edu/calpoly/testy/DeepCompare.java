@@ -0,0 +1,390 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.calpoly.testy;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Rules for comparing object graphs, field by field, for 
+ * {@link Assert#assertDeepEquals(String, DeepCompare, Object, Object)}.
+ * Fields are read by functions that you register, rather than by 
+ * reflection, so this works with any class, including ones in modules 
+ * that aren't open, e.g.:
+ * <pre>
+ *
+ *     DeepCompare fields = new DeepCompare()
+ *         .field(Order.class, "lines", Order::getLines)
+ *         .field(Line.class, "item", Line::getItem)
+ *         .field(Line.class, "price", Line::getPrice);
+ *     assertDeepEquals("orders", fields, expected, actual);
+ * </pre>
+ * A record's accessors can be registered the same way.
+ * <p>
+ * Objects of a class with registered fields are equal if they're the
+ * same class, and their fields are.  A class without registered fields
+ * uses those of its nearest superclass that has some.  Arrays, Lists and
+ * Maps are compared element by element.  Anything else is compared with
+ * <code>equals()</code>.  When a difference is found, it's described by
+ * its path from the top, like <code>orders[4].lines[17].price</code>.
+ * <p>
+ * The graph is walked with an explicit stack, so deep structures don't
+ * overflow the thread's stack.  Each pair of objects is only compared
+ * once, so cycles and shared parts of the graph take linear time.
+ * <p>
+ * Register all of the fields before comparing.  After that, a 
+ * DeepCompare can be used from several threads at once.
+ */
+public final class DeepCompare {
+
+    private final Map<Class<?>, List<Field>> fields = new HashMap<>();
+
+    /**
+     * Make a DeepCompare without any registered fields.
+     */
+    public DeepCompare() {
+    }
+
+    /**
+     * Register a field of a class.  The fields of a class are compared in
+     * the order they were registered.
+     *
+     * @param <T>    the class's type
+     * @param type   the class that has the field
+     * @param name   the field's name, as shown in the path
+     * @param getter gets the field's value from an instance
+     * @return this, so calls can be chained
+     */
+    public <T> DeepCompare field(Class<T> type, String name, 
+    				 Function<? super T, ?> getter) 
+    {
+	Objects.requireNonNull(getter);
+	List<Field> list = fields.get(type);
+	if (list == null) {
+	    list = new ArrayList<>();
+	    fields.put(type, list);
+	}
+	list.add(new Field(name, o -> getter.apply(type.cast(o))));
+	return this;
+    }
+
+    //
+    // Compare two object graphs.  Returns null if they're the same, or
+    // a description of the first difference.
+    //
+    String compare(Object expected, Object actual) {
+	Deque<Node> stack = new ArrayDeque<>();
+	Set<Pair> visited = new HashSet<>();
+	stack.push(new Node(null, null, -1, expected, actual));
+	while (!stack.isEmpty()) {
+	    Node n = stack.pop();
+	    Object e = n.expected;
+	    Object a = n.actual;
+	    if (e == a) {
+		continue;
+	    } else if (e == null || a == null) {
+		return n.differs(e, a);
+	    }
+	    List<Field> fs = fieldsOf(e.getClass());
+	    boolean container = fs != null || e.getClass().isArray()
+	    			|| e instanceof List || e instanceof Map;
+	    if (container && !visited.add(new Pair(e, a))) {
+		continue;
+	    }
+	    String difference;
+	    if (fs != null) {
+		difference = pushFields(n, fs, stack);
+	    } else if (e instanceof Object[]) {
+		difference = pushElements(n, (Object[]) e, stack);
+	    } else if (e.getClass().isArray()) {
+		difference = comparePrimitives(n);
+	    } else if (e instanceof List) {
+		difference = pushElements(n, (List<?>) e, stack);
+	    } else if (e instanceof Map) {
+		difference = pushEntries(n, (Map<?, ?>) e, stack);
+	    } else {
+		difference = e.equals(a) ? null : n.differs(e, a);
+	    }
+	    if (difference != null) {
+		return difference;
+	    }
+	}
+	return null;
+    }
+
+    private List<Field> fieldsOf(Class<?> c) {
+	for (; c != null; c = c.getSuperclass()) {
+	    List<Field> result = fields.get(c);
+	    if (result != null) {
+		return result;
+	    }
+	}
+	return null;
+    }
+
+    //
+    // Push children in reverse, so they're popped in order, and the first
+    // difference reported is the first one in the graph.
+    //
+    private static String pushFields(Node n, List<Field> fs, 
+    				     Deque<Node> stack) 
+    {
+	if (n.expected.getClass() != n.actual.getClass()) {
+	    return n.differsIn("class", n.expected.getClass().getName(),
+	    		       n.actual.getClass().getName());
+	}
+	for (int i = fs.size() - 1; i >= 0; i--) {
+	    Field f = fs.get(i);
+	    stack.push(new Node(n, f.name, -1, f.getter.apply(n.expected), 
+	    			f.getter.apply(n.actual)));
+	}
+	return null;
+    }
+
+    private static String pushElements(Node n, Object[] e, 
+    				       Deque<Node> stack) 
+    {
+	if (!(n.actual instanceof Object[])) {
+	    return n.differs(e, n.actual);
+	}
+	return pushElements(n, e, (Object[]) n.actual, stack);
+    }
+
+    private static String pushElements(Node n, List<?> e, 
+    				       Deque<Node> stack) 
+    {
+	if (!(n.actual instanceof List)) {
+	    return n.differs(e, n.actual);
+	}
+	return pushElements(n, toArray(e), toArray((List<?>) n.actual), 
+			    stack);
+    }
+
+    private static Object[] toArray(List<?> list) {
+	if (list instanceof RandomAccess) {
+	    Object[] result = new Object[list.size()];
+	    for (int i = 0; i < result.length; i++) {
+		result[i] = list.get(i);
+	    }
+	    return result;
+	}
+	return list.toArray();
+    }
+
+    private static String pushElements(Node n, Object[] e, Object[] a,
+    				       Deque<Node> stack) 
+    {
+	if (e.length != a.length) {
+	    // This is popped after the elements, so the first element that
+	    // differs is reported, if there is one, rather than the size.
+	    stack.push(new Node(n, null, -1, e.length, a.length));
+	}
+	int len = Math.min(e.length, a.length);
+	for (int i = len - 1; i >= 0; i--) {
+	    stack.push(new Node(n, null, i, e[i], a[i]));
+	}
+	return null;
+    }
+
+    //
+    // Arrays of primitives are compared without boxing their elements;
+    // only the first pair that differs is boxed, to report it.
+    //
+    private static String comparePrimitives(Node n) {
+	Object e = n.expected;
+	Object a = n.actual;
+	if (e.getClass() != a.getClass()) {
+	    return n.differs(e, a);
+	}
+	int eLen = Array.getLength(e);
+	int aLen = Array.getLength(a);
+	int i = mismatch(e, a, Math.min(eLen, aLen));
+	if (i >= 0) {
+	    Object ev = Array.get(e, i);
+	    Object av = Array.get(a, i);
+	    return new Node(n, null, i, ev, av).differs(ev, av);
+	} else if (eLen != aLen) {
+	    return n.differsIn("length", "" + eLen, "" + aLen);
+	}
+	return null;
+    }
+
+    //
+    // The index of the first difference in the first length elements of
+    // two arrays of the same primitive type, or -1 if there isn't one.
+    //
+    private static int mismatch(Object e, Object a, int length) {
+	if (e instanceof int[]) {
+	    return Platform.mismatch((int[]) e, (int[]) a, length);
+	} else if (e instanceof long[]) {
+	    return Platform.mismatch((long[]) e, (long[]) a, length);
+	} else if (e instanceof double[]) {
+	    return Platform.mismatch((double[]) e, (double[]) a, length);
+	} else if (e instanceof byte[]) {
+	    return Platform.mismatch((byte[]) e, (byte[]) a, length);
+	} else if (e instanceof char[]) {
+	    return Platform.mismatch((char[]) e, (char[]) a, length);
+	} else if (e instanceof boolean[]) {
+	    return Platform.mismatch((boolean[]) e, (boolean[]) a, length);
+	} else if (e instanceof float[]) {
+	    return Platform.mismatch((float[]) e, (float[]) a, length);
+	} else {
+	    return Platform.mismatch((short[]) e, (short[]) a, length);
+	}
+    }
+
+    private static String pushEntries(Node n, Map<?, ?> e, 
+    				      Deque<Node> stack) 
+    {
+	if (!(n.actual instanceof Map)) {
+	    return n.differs(e, n.actual);
+	}
+	Map<?, ?> a = (Map<?, ?>) n.actual;
+	List<Node> children = new ArrayList<>(e.size());
+	for (Map.Entry<?, ?> entry : e.entrySet()) {
+	    Object key = entry.getKey();
+	    if (!a.containsKey(key)) {
+		return n.differsIn("key " + Assert.toString(key), "present",
+				   "missing");
+	    }
+	    children.add(new Node(n, "[" + Assert.toString(key) + "]", -1, 
+	    			  entry.getValue(), a.get(key)));
+	}
+	if (a.size() != e.size()) {
+	    for (Object key : a.keySet()) {
+		if (!e.containsKey(key)) {
+		    return n.differsIn("key " + Assert.toString(key), 
+		    		       "missing", "present");
+		}
+	    }
+	}
+	for (int i = children.size() - 1; i >= 0; i--) {
+	    stack.push(children.get(i));
+	}
+	return null;
+    }
+
+    //
+    // A pair of objects being compared, and how we got there.  The path
+    // is only turned into a String if there's a difference.
+    //
+    private static final class Node {
+	final Node parent;
+	final String name;	// A field, or a map key in brackets
+	final int index;	// Or an array or list index
+	final Object expected;
+	final Object actual;
+
+	Node(Node parent, String name, int index, Object expected, 
+	     Object actual) 
+	{
+	    this.parent = parent;
+	    this.name = name;
+	    this.index = index;
+	    this.expected = expected;
+	    this.actual = actual;
+	}
+
+	String path() {
+	    List<Node> nodes = new ArrayList<>();
+	    for (Node n = this; n.parent != null; n = n.parent) {
+		nodes.add(n);
+	    }
+	    StringBuilder sb = new StringBuilder();
+	    for (int i = nodes.size() - 1; i >= 0; i--) {
+		Node n = nodes.get(i);
+		if (n.index >= 0) {
+		    sb.append('[').append(n.index).append(']');
+		} else if (n.name == null) {
+		    sb.append(sb.length() == 0 ? "size" : ".size");
+		} else if (n.name.startsWith("[") || sb.length() == 0) {
+		    sb.append(n.name);
+		} else {
+		    sb.append('.').append(n.name);
+		}
+	    }
+	    return sb.length() == 0 ? "the top" : sb.toString();
+	}
+
+	String differs(Object e, Object a) {
+	    return "differs at " + path() 
+	    	   + ", expected:  " + Assert.toString(e)
+		   + "  actual:  " + Assert.toString(a);
+	}
+
+	String differsIn(String what, String e, String a) {
+	    return "differs at " + path() + ", " + what
+	    	   + " expected:  " + e + "  actual:  " + a;
+	}
+    }
+
+    private static final class Field {
+	final String name;
+	final Function<Object, ?> getter;
+
+	Field(String name, Function<Object, ?> getter) {
+	    this.name = name;
+	    this.getter = getter;
+	}
+    }
+
+    //
+    // Two objects compared by identity, for the visited set.
+    //
+    private static final class Pair {
+	final Object expected;
+	final Object actual;
+
+	Pair(Object expected, Object actual) {
+	    this.expected = expected;
+	    this.actual = actual;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+	    if (!(other instanceof Pair)) {
+		return false;
+	    }
+	    Pair p = (Pair) other;
+	    return expected == p.expected && actual == p.actual;
+	}
+
+	@Override
+	public int hashCode() {
+	    return System.identityHashCode(expected) * 31 
+	    	   + System.identityHashCode(actual);
+	}
+    }
+}
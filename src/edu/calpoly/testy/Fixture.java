@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+/**
+ * A value shared by the tests in a {@link Suite}, like a big index loaded
+ * from disk.  It's created the first time a test asks for it, and at most
+ * once for each run of the suite, even when tests run in parallel.  When
+ * the last of the suite's tests has finished, it is torn down.
+ * Fixtures are made with {@link Suite#fixture(Fixture.Factory, 
+ * Fixture.Teardown) Suite.fixture()}.
+ *
+ * @param <T>	The type of the value
+ * @see Suite
+ */
+public final class Fixture<T> {
+
+    /**
+     * Creates the value of a fixture.
+     *
+     * @param <T>	The type of the value
+     */
+    @FunctionalInterface
+    public interface Factory<T> {
+	/**
+	 * Create the value.
+	 *
+	 * @return the new value
+	 * @throws Throwable if the value can't be created
+	 */
+	public T create() throws Throwable;
+    }
+
+    /**
+     * Releases the value of a fixture.
+     *
+     * @param <T>	The type of the value
+     */
+    @FunctionalInterface
+    public interface Teardown<T> {
+	/**
+	 * Release the value.
+	 *
+	 * @param value	The value that was created
+	 * @throws Throwable if there's a problem releasing it
+	 */
+	public void close(T value) throws Throwable;
+    }
+
+    private final Factory<T> factory;
+    private final Teardown<T> teardown;
+    private volatile boolean created;
+    private T value;		// Written before created is set
+    private Throwable failure;	// Written before created is set
+
+    Fixture(Factory<T> factory, Teardown<T> teardown) {
+	this.factory = factory;
+	this.teardown = teardown;
+    }
+
+    /**
+     * Get the fixture's value, creating it if this is the first time
+     * it's been asked for.  If it couldn't be created, every test that
+     * asks for it fails, without trying again.
+     *
+     * @return the value
+     * @throws TestFailed if the value couldn't be created
+     */
+    public T get() {
+	if (!created) {
+	    synchronized(this) {
+		if (!created) {
+		    try {
+			value = factory.create();
+		    } catch (Throwable t) {
+			failure = t;
+		    }
+		    created = true;
+		}
+	    }
+	}
+	if (failure != null) {
+	    throw new TestFailed("Fixture could not be created", failure);
+	}
+	return value;
+    }
+
+    //
+    // Tear down the value, if it was created.  Afterwards, the fixture
+    // can be created again, should the suite be run again.
+    //
+    synchronized void close() {
+	if (!created) {
+	    return;
+	}
+	T v = value;
+	boolean ok = failure == null;
+	value = null;
+	failure = null;
+	created = false;
+	if (ok && teardown != null) {
+	    try {
+		teardown.close(v);
+	    } catch (Throwable t) {
+		System.err.println("Fixture teardown failed:");
+		t.printStackTrace();
+		System.err.println();
+	    }
+	}
+    }
+}
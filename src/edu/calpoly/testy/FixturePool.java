@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pool of expensive, reusable resources, like scratch directories or
+ * preloaded parsers, shared by the tests in a {@link Suite}.  A test
+ * borrows an instance, uses it, and gives it back, rather than making one
+ * of its own.  The pool is filled before the suite's first test runs,
+ * so the tests don't wait for instances to be made.  Instances are reset
+ * each time they are returned.  When the suite is done, every instance is
+ * torn down, including any that a test leased and never gave back.  For
+ * example:
+ * <pre>
+ *
+ *     FixturePool&lt;Path&gt; dirs = suite.pool(
+ *         () -&gt; Files.createTempDirectory("db"),
+ *         dir -&gt; deleteContents(dir),
+ *         dir -&gt; Files.delete(dir));
+ *     suite.add(
+ *         Testy.test("insert", () -&gt; dirs.use(dir -&gt; testInsert(dir))),
+ *         Testy.test("delete", () -&gt; dirs.use(dir -&gt; testDelete(dir)))
+ *     );
+ * </pre>
+ * Instances are handed from one test to the next through a lock-free 
+ * queue.  A test that finds the pool empty, with all of its instances
+ * created, waits by spinning briefly and then parking.  The pool keeps
+ * track of which instances are leased, so giving one back twice, or
+ * giving back something that didn't come from the pool, is an error.
+ *
+ * @param <T>	The type of the pooled resources
+ * @see Suite#pool(Fixture.Factory, FixturePool.Reset, Fixture.Teardown)
+ */
+public final class FixturePool<T> {
+
+    /**
+     * Puts an instance back into a clean state when it's returned.
+     *
+     * @param <T>	The type of the pooled resources
+     */
+    @FunctionalInterface
+    public interface Reset<T> {
+	/**
+	 * Reset the instance.
+	 *
+	 * @param value	The instance being returned to the pool
+	 * @throws Throwable if it can't be reset, in which case it is
+	 *		     torn down and replaced
+	 */
+	public void reset(T value) throws Throwable;
+    }
+
+    /**
+     * Code that uses an instance from the pool.
+     *
+     * @param <T>	The type of the pooled resources
+     */
+    @FunctionalInterface
+    public interface Use<T> {
+	/**
+	 * Use the instance.
+	 *
+	 * @param value	The leased instance
+	 * @throws Throwable to indicate a test failure
+	 */
+	public void accept(T value) throws Throwable;
+    }
+
+    private final int size;
+    private final Fixture.Factory<T> factory;
+    private final Reset<T> reset;
+    private final Fixture.Teardown<T> teardown;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final Set<T> all 
+	= Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    private final Set<T> leased 
+	= Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    private boolean closed;		// Guarded by all
+
+    FixturePool(int size, Fixture.Factory<T> factory, Reset<T> reset, 
+    		Fixture.Teardown<T> teardown) 
+    {
+	if (size < 1) {
+	    throw new IllegalArgumentException("size:  " + size);
+	}
+	this.size = size;
+	this.factory = factory;
+	this.reset = reset;
+	this.teardown = teardown;
+    }
+
+    /**
+     * Borrow an instance, creating one if there's none free and the pool
+     * isn't full, or else waiting for one to be returned.  It must be 
+     * given back with {@link #release(Object)}.
+     *
+     * @return the instance
+     * @throws TestFailed if a new instance couldn't be created
+     */
+    public T lease() {
+	long parkNanos = 1000;
+	for (int spins = 0; ; spins++) {
+	    T value = idle.poll();
+	    if (value != null) {
+		return leased(value);
+	    }
+	    int n = created.get();
+	    if (n < size) {
+		if (created.compareAndSet(n, n + 1)) {
+		    try {
+			return leased(create());
+		    } catch (Throwable t) {
+			created.decrementAndGet();
+			throw new TestFailed("Pool instance could not be created",
+					     t);
+		    }
+		}
+	    } else if (spins > 100) {
+		LockSupport.parkNanos(parkNanos);
+		parkNanos = Math.min(parkNanos * 2, 1000000);
+	    } else {
+		Platform.onSpinWait();
+	    }
+	}
+    }
+
+    /**
+     * Give back an instance that was borrowed with {@link #lease()}.  It
+     * is reset, and becomes available to other tests.
+     *
+     * @param value	The instance
+     * @throws TestFailed if it couldn't be reset.  The instance is then
+     *		torn down, and a new one will be made when it's needed.
+     * @throws IllegalStateException if the instance isn't leased from 
+     *		this pool, e.g. because it was already given back
+     */
+    public void release(T value) {
+	synchronized (all) {
+	    if (!leased.remove(value)) {
+		throw new IllegalStateException("Released an instance that "
+			+ "isn't leased from this pool:  " + value);
+	    }
+	    if (closed || !all.contains(value)) {
+		// The suite is done, so this is a test that was abandoned,
+		// and the instance has been torn down.
+		return;
+	    }
+	}
+	if (reset != null) {
+	    try {
+		reset.reset(value);
+	    } catch (Throwable t) {
+		discard(value);
+		throw new TestFailed("Pool instance could not be reset", t);
+	    }
+	}
+	// Checked again under the lock, so close() can't tear this down
+	// between our check and the offer.
+	synchronized (all) {
+	    if (!closed) {
+		idle.offer(value);
+		return;
+	    }
+	}
+	discard(value);
+    }
+
+    /**
+     * Borrow an instance, use it, and give it back.
+     *
+     * @param body	The code that uses the instance
+     * @throws Throwable if the body does, or if the instance can't be 
+     *		reset afterwards
+     */
+    public void use(Use<T> body) throws Throwable {
+	T value = lease();
+	try {
+	    body.accept(value);
+	} catch (Throwable t) {
+	    // Don't let a failure to reset hide the original failure
+	    try {
+		release(value);
+	    } catch (TestFailed ignored) {
+	    }
+	    throw t;
+	}
+	release(value);
+    }
+
+    /**
+     * @return the maximum number of instances in this pool
+     */
+    public int getSize() {
+	return size;
+    }
+
+    private T leased(T value) {
+	synchronized (all) {
+	    leased.add(value);
+	}
+	return value;
+    }
+
+    private T create() throws Throwable {
+	T value = factory.create();
+	synchronized (all) {
+	    all.add(value);
+	}
+	return value;
+    }
+
+    //
+    // Tear down an instance, unless that's already been done.
+    //
+    private void discard(T value) {
+	synchronized (all) {
+	    if (!all.remove(value)) {
+		return;
+	    }
+	}
+	created.decrementAndGet();
+	if (teardown != null) {
+	    try {
+		teardown.close(value);
+	    } catch (Throwable t) {
+		System.err.println("Pool teardown failed:");
+		t.printStackTrace();
+		System.err.println();
+	    }
+	}
+    }
+
+    //
+    // Fill the pool.  This is called before the suite's first test runs,
+    // and opens the pool again if the suite has been run before.  If an
+    // instance can't be made, we stop, and leave it to lease() to try 
+    // again, and fail the test that needs it.
+    //
+    void warm() {
+	synchronized (all) {
+	    closed = false;
+	}
+	for (int n = created.get(); n < size; n = created.get()) {
+	    if (created.compareAndSet(n, n + 1)) {
+		try {
+		    idle.offer(create());
+		} catch (Throwable t) {
+		    created.decrementAndGet();
+		    return;
+		}
+	    }
+	}
+    }
+
+    //
+    // Tear down every instance.  This is called when the suite is done.
+    // Instances that are still leased, e.g. by a test that was abandoned
+    // by the watchdog, are torn down too, since they would otherwise 
+    // never be.  They stay in leased, so that giving one back later 
+    // isn't an error.
+    //
+    void close() {
+	Object[] values;
+	synchronized (all) {
+	    closed = true;
+	    idle.clear();
+	    values = all.toArray();
+	}
+	for (Object value : values) {
+	    @SuppressWarnings("unchecked")
+	    T v = (T) value;
+	    discard(v);
+	}
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Re-runs failed tests, to tell the ones that fail every time from the
+ * flaky ones.  See the "Flaky Tests" section of {@link Testy}.
+ */
+final class Flaky {
+
+    private static final Object historyLock = new Object();
+
+    private final int reruns;
+    private final int parallelism;
+    private final String historyFile;
+    private final boolean quarantine;
+    private int flaky;
+    private int quarantined;
+
+    private Flaky(int reruns, int parallelism, String historyFile,
+    		  boolean quarantine) 
+    {
+	this.reruns = reruns;
+	this.parallelism = parallelism;
+	this.historyFile = historyFile;
+	this.quarantine = quarantine;
+    }
+
+    //
+    // Create from the testy.* system properties, or return null if
+    // failed tests aren't to be re-run.
+    //
+    static Flaky fromProperties() {
+	int reruns = Integer.getInteger("testy.reruns", 0);
+	if (reruns <= 0) {
+	    return null;
+	}
+	// Tests that ran one after the other often share state, so they're
+	// only re-run at once if that's asked for.
+	int parallelism = (System.getProperty("testy.parallelism") == null)
+			  ? 1 : Testy.parallelism();
+	return new Flaky(reruns, parallelism, 
+			 System.getProperty("testy.flakyHistory"),
+			 Boolean.getBoolean("testy.quarantine"));
+    }
+
+    //
+    // Re-run each of the tests that failed, and report how they did.
+    // Different tests are only re-run in parallel if testy.parallelism is
+    // set, and each test's own re-runs are always one after the other, 
+    // since a test usually isn't written to run concurrently with itself.
+    // keys[i] identifies tests[i] in the history.  A test that turns out 
+    // to be flaky, or is quarantined, has failures[i] cleared, since it no
+    // longer counts as failed.
+    //
+    void rerun(TestRunnable[] tests, String[] keys, Throwable[] failures,
+    	       Watchdog watchdog) 
+    {
+	List<Integer> failed = new ArrayList<>();
+	for (int i = 0; i < tests.length; i++) {
+	    if (failures[i] != null) {
+		failed.add(i);
+	    }
+	}
+	if (failed.isEmpty()) {
+	    return;
+	}
+	int[] passes = new int[failed.size()];
+	if (parallelism == 1 || passes.length == 1) {
+	    for (int j = 0; j < passes.length; j++) {
+		passes[j] = rerun(tests[failed.get(j)], watchdog);
+	    }
+	} else if (!rerunInParallel(tests, failed, watchdog, passes)) {
+	    return;
+	}
+
+	Properties history = (historyFile == null) ? null : loadHistory();
+	List<String> newlyFlaky = new ArrayList<>();
+	for (int j = 0; j < passes.length; j++) {
+	    String key = keys[failed.get(j)];
+	    String rate = "passed " + passes[j] + " of " + reruns + " re-runs";
+	    if (passes[j] > 0) {
+		flaky++;
+		failures[failed.get(j)] = null;
+		newlyFlaky.add(key);
+		System.err.println("Test " + key + " is flaky:  " + rate);
+	    } else if (quarantine && history != null 
+	    	       && history.getProperty(key) != null) 
+	    {
+		quarantined++;
+		failures[failed.get(j)] = null;
+		System.err.println("Test " + key + " failed, but is quarantined "
+				   + "as flaky:  " + rate);
+	    } else {
+		System.err.println("Test " + key + " failed consistently:  " 
+				   + rate);
+	    }
+	}
+	if (history != null && !newlyFlaky.isEmpty()) {
+	    recordFlaky(newlyFlaky);
+	}
+    }
+
+    //
+    // Re-run one test, and return the number of times it passed.
+    //
+    private int rerun(TestRunnable test, Watchdog watchdog) {
+	int passes = 0;
+	for (int r = 0; r < reruns; r++) {
+	    Throwable t = (watchdog == null) 
+			  ? Testy.runTest(test) : watchdog.run(test);
+	    if (t == null) {
+		passes++;
+	    }
+	}
+	return passes;
+    }
+
+    //
+    // Re-run the failed tests on a pool of threads, putting the number of
+    // times each one passed in passes.  Returns false if interrupted.
+    //
+    private boolean rerunInParallel(TestRunnable[] tests, List<Integer> failed,
+    				    Watchdog watchdog, int[] passes) 
+    {
+	List<Callable<Integer>> tasks = new ArrayList<>();
+	for (int i : failed) {
+	    TestRunnable test = tests[i];
+	    tasks.add(() -> rerun(test, watchdog));
+	}
+	ExecutorService pool 
+	    = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+	try {
+	    List<Future<Integer>> results = pool.invokeAll(tasks);
+	    for (int i = 0; i < passes.length; i++) {
+		passes[i] = results.get(i).get();
+	    }
+	    return true;
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	} catch (ExecutionException ex) {
+	    // The tasks catch everything, so this can't happen.
+	    throw new IllegalStateException(ex.getCause());
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    //
+    // The number of tests that failed, but then passed at least once.
+    //
+    int getFlaky() {
+	return flaky;
+    }
+
+    //
+    // The number of tests that failed every time, but are known from the
+    // history to be flaky.
+    //
+    int getQuarantined() {
+	return quarantined;
+    }
+
+    //
+    // The history maps a test's key to the number of runs in which it was
+    // found to be flaky.  It's read and written under a lock, since 
+    // BatchGrader might have several runs going at once.
+    //
+    private Properties loadHistory() {
+	Properties p = new Properties();
+	synchronized(historyLock) {
+	    File f = new File(historyFile);
+	    if (f.exists()) {
+		try (InputStream in = new FileInputStream(f)) {
+		    p.load(in);
+		} catch (IOException ex) {
+		    System.err.println("Can't read " + historyFile + ":  " + ex);
+		}
+	    }
+	}
+	return p;
+    }
+
+    private void recordFlaky(List<String> keys) {
+	synchronized(historyLock) {
+	    Properties p = loadHistory();
+	    for (String key : keys) {
+		int old = Integer.parseInt(p.getProperty(key, "0"));
+		p.setProperty(key, "" + (old + 1));
+	    }
+	    try (OutputStream out = new FileOutputStream(historyFile)) {
+		p.store(out, "Testy flaky test history");
+	    } catch (IOException ex) {
+		System.err.println("Can't write " + historyFile + ":  " + ex);
+	    }
+	}
+    }
+}
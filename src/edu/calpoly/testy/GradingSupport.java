@@ -27,11 +27,32 @@ package edu.calpoly.testy;
  * can swap out the source for this class in favor of one that adds 
  * instrumention.  By doing this at the source level, we can use a private
  * static boolean to remove all overhead when this is not in use.
+ * {@link BatchGrader} doesn't use this class, so a grader that replaces
+ * it can still use BatchGrader.
  */
 class GradingSupport {
 
     static boolean ENABLED = false;
 
+    /**
+     * Called as each test completes, so that partial credit can be
+     * assigned without re-running tests one at a time.  This may be called
+     * from several threads at once, e.g. for asynchronous tests, so a 
+     * grading implementation should accumulate any weighted score with 
+     * something thread-safe, like
+     * <code>java.util.concurrent.atomic.DoubleAdder</code>.
+     *
+     * @param tests		The tests being run
+     * @param index		The index of the test that completed
+     * @param durationNanos	How long the test took to run
+     * @param failure		The exception that failed the test, or null
+     *				if the test passed
+     */
+    static void fromTestyTest(TestRunnable[] tests, int index, 
+    			      long durationNanos, Throwable failure) 
+    {
+    }
+
     static void fromTestyRun(TestRunnable[] tests, int passed, int failed) {
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Test impact analysis:  records the classes each test uses, and then
+ * only runs the tests that use a class that has changed since.  See the
+ * "Test Impact" section of {@link Testy}.
+ */
+final class Impact {
+
+    private static final Object fileLock = new Object();
+    private final String file;
+    private final Properties map;
+    private final Properties recorded = new Properties();
+    private final Set<String> forgotten = new HashSet<>();
+    private final Map<String, String> hashes = new HashMap<>();
+    private final ClassLoader loader;
+
+    private Impact(String file) {
+	this.file = file;
+	this.map = load(file);
+	ClassLoader cl = Thread.currentThread().getContextClassLoader();
+	this.loader = (cl == null) ? ClassLoader.getSystemClassLoader() : cl;
+    }
+
+    //
+    // Create from the testy.impact system property, or return null if
+    // it isn't set.
+    //
+    static Impact fromProperties() {
+	String file = System.getProperty("testy.impact");
+	if (file == null) {
+	    return null;
+	}
+	if (Probes.isShadowed()) {
+	    System.err.println("testy.impact can't be used, because Testy "
+	    		       + "was loaded by a different class loader from "
+			       + "the agent's, so all tests will be run.");
+	    return null;
+	} else if (!Probes.isInstalled()) {
+	    System.err.println("testy.impact needs -javaagent:testy.jar, "
+	    		       + "so all tests will be run.");
+	    return null;
+	}
+	return new Impact(file);
+    }
+
+    //
+    // Should the test with the given name be run?  A test is run if it
+    // has no name, if it hasn't been run before, or if a class it used
+    // has changed.  The map has each test's classes, along with the hash
+    // each one had when the test was last run, like 
+    // "a/B@1c291ca3,a/C@53a9e01f".
+    //
+    boolean isAffected(String name) {
+	if (name == null) {
+	    return true;
+	}
+	String classes = map.getProperty(name);
+	if (classes == null) {
+	    return true;
+	}
+	for (String entry : classes.split(",")) {
+	    int at = entry.lastIndexOf('@');
+	    if (at < 0) {
+		continue;
+	    }
+	    String hash = currentHash(entry.substring(0, at));
+	    if (!entry.substring(at + 1).equals(hash)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    //
+    // Hash the class file as it is now, or return null if it's gone.
+    //
+    private String currentHash(String className) {
+	String result = hashes.get(className);
+	if (result == null && !hashes.containsKey(className)) {
+	    result = hash(className);
+	    hashes.put(className, result);
+	}
+	return result;
+    }
+
+    private String hash(String className) {
+	try (InputStream in = loader.getResourceAsStream(className + ".class")) {
+	    if (in == null) {
+		return null;
+	    }
+	    CRC32 crc = new CRC32();
+	    byte[] buf = new byte[8192];
+	    for (int n; (n = in.read(buf)) > 0; ) {
+		crc.update(buf, 0, n);
+	    }
+	    return Long.toHexString(crc.getValue());
+	} catch (IOException ex) {
+	    return null;
+	}
+    }
+
+    //
+    // Called just after a test is run, to record the classes it used
+    // since the probes were reset.
+    // A test that failed is forgotten, so it will be run next time, even
+    // if nothing changes.
+    //
+    void finish(String name, boolean passed) {
+	if (name == null) {
+	    return;
+	} else if (!passed) {
+	    forgotten.add(name);
+	    recorded.remove(name);
+	    return;
+	}
+	forgotten.remove(name);
+	Map<String, Long> touched = Probes.touched();
+	StringBuilder sb = new StringBuilder();
+	for (Map.Entry<String, Long> e : touched.entrySet()) {
+	    if (sb.length() > 0) {
+		sb.append(',');
+	    }
+	    sb.append(e.getKey()).append('@')
+	      .append(Long.toHexString(e.getValue()));
+	}
+	recorded.setProperty(name, sb.toString());
+    }
+
+    //
+    // Write out what was recorded.  The file is re-read first, since
+    // BatchGrader might have several runs going at once.
+    //
+    void save() {
+	synchronized(fileLock) {
+	    Properties p = load(file);
+	    p.putAll(recorded);
+	    for (String name : forgotten) {
+		p.remove(name);
+	    }
+	    try (OutputStream out = new FileOutputStream(file)) {
+		p.store(out, "Testy test impact map");
+	    } catch (IOException ex) {
+		System.err.println("Can't write " + file + ":  " + ex);
+	    }
+	}
+    }
+
+    private static Properties load(String file) {
+	Properties p = new Properties();
+	synchronized(fileLock) {
+	    File f = new File(file);
+	    if (f.exists()) {
+		try (InputStream in = new FileInputStream(f)) {
+		    p.load(in);
+		} catch (IOException ex) {
+		    System.err.println("Can't read " + file + ":  " + ex);
+		}
+	    }
+	}
+	return p;
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Rewrites a class file, so that every method calls 
+ * {@link Probes#hit(int, int)} when it's entered, and optionally when
+ * each of its lines is started.  This is done by hand, rather than with
+ * a bytecode library, so Testy stays a single jar with no dependencies.
+ * <p>
+ * The method's probe goes at the start of the code.  A line's probe goes
+ * just before the first instruction of the line, as given by the
+ * <code>LineNumberTable</code>, so a class compiled without line numbers
+ * only gets the method probes.  Each probe is a multiple of four bytes
+ * long, so the padding in <code>tableswitch</code> and 
+ * <code>lookupswitch</code> stays the same.  Everything that holds a code 
+ * offset is moved:  the branches, the exception table, the debugging
+ * tables, and the stack map frames.  A branch to the start of a line goes
+ * to the line's probe, so a loop hits it each time around.  If a method
+ * would get too big, or a branch would no longer reach, the method only
+ * gets its method probe.
+ * <p>
+ * Type annotations inside a method's code (the
+ * <code>RuntimeVisibleTypeAnnotations</code> and
+ * <code>RuntimeInvisibleTypeAnnotations</code> attributes of its
+ * <code>Code</code>) hold code offsets too, but they're dropped rather
+ * than moved, so a tool that reads them back out of an instrumented
+ * class won't find them.  Type annotations on fields, methods and the
+ * class itself are kept.
+ */
+final class Instrumenter {
+
+    private static final String PROBES = "edu/calpoly/testy/Probes";
+
+    //
+    // ldc_w classId; sipush probe; invokestatic Probes.hit(II)V; nop; nop;
+    // nop
+    //
+    private static final int PROBE_LENGTH = 12;
+    private static final int PROBE_STACK = 2;
+
+    //
+    // The length of each instruction, by opcode, or 0 for the switches and
+    // wide, whose length varies, and for opcodes that don't exist.
+    //
+    private static final byte[] LENGTHS = new byte[256];
+    static {
+	Arrays.fill(LENGTHS, 0, 0xca, (byte) 1);
+	Arrays.fill(LENGTHS, 0x15, 0x1a, (byte) 2);	// iload..aload
+	Arrays.fill(LENGTHS, 0x36, 0x3b, (byte) 2);	// istore..astore
+	Arrays.fill(LENGTHS, 0x99, 0xa9, (byte) 3);	// ifeq..jsr
+	Arrays.fill(LENGTHS, 0xb2, 0xb9, (byte) 3);	// getstatic..invokestatic
+	LENGTHS[0x10] = 2;	// bipush
+	LENGTHS[0x11] = 3;	// sipush
+	LENGTHS[0x12] = 2;	// ldc
+	LENGTHS[0x13] = 3;	// ldc_w
+	LENGTHS[0x14] = 3;	// ldc2_w
+	LENGTHS[0x84] = 3;	// iinc
+	LENGTHS[0xa9] = 2;	// ret
+	LENGTHS[0xaa] = 0;	// tableswitch
+	LENGTHS[0xab] = 0;	// lookupswitch
+	LENGTHS[0xb9] = 5;	// invokeinterface
+	LENGTHS[0xba] = 5;	// invokedynamic
+	LENGTHS[0xbb] = 3;	// new
+	LENGTHS[0xbc] = 2;	// newarray
+	LENGTHS[0xbd] = 3;	// anewarray
+	LENGTHS[0xc0] = 3;	// checkcast
+	LENGTHS[0xc1] = 3;	// instanceof
+	LENGTHS[0xc4] = 0;	// wide
+	LENGTHS[0xc5] = 4;	// multianewarray
+	LENGTHS[0xc6] = 3;	// ifnull
+	LENGTHS[0xc7] = 3;	// ifnonnull
+	LENGTHS[0xc8] = 5;	// goto_w
+	LENGTHS[0xc9] = 5;	// jsr_w
+    }
+
+    private final byte[] in;
+    private int pos;
+    private String[] utf8;
+    private int cpCount;
+    private final Map<Integer, Integer> lineProbes = new HashMap<>();
+    private int classIdConst;
+    private int hitRef;
+
+    //
+    // For the method being rewritten:  the line probe at each code offset,
+    // or -1, and where each offset is moved to.  An offset with a line 
+    // probe moves to the probe, so that branches to it hit the probe.
+    //
+    private int[] lineAt;
+    private int[] target;
+
+    private Instrumenter(byte[] in) {
+	this.in = in;
+    }
+
+    //
+    // Instrument the given class, and register it with Probes.  If lines 
+    // is true, each line gets a probe too.  Returns null if the class has
+    // no code to instrument.  Throws IllegalArgumentException if it can't
+    // read the class file.
+    //
+    static byte[] instrument(String className, byte[] classFile, long hash,
+    			     boolean lines) 
+    {
+	Instrumenter ins = new Instrumenter(classFile);
+	try {
+	    List<String> probes = ins.findProbes(lines);
+	    if (probes.isEmpty() || probes.size() > Short.MAX_VALUE) {
+		return null;
+	    }
+	    int classId = Probes.register(className, 
+	    		probes.toArray(new String[probes.size()]), hash);
+	    return ins.rewrite(classId);
+	} catch (IOException | RuntimeException ex) {
+	    throw new IllegalArgumentException(
+		    "Can't instrument " + className + ":  " + ex, ex);
+	}
+    }
+
+    private int u1() {
+	return in[pos++] & 0xff;
+    }
+
+    private int u2() {
+	int v = ((in[pos] & 0xff) << 8) | (in[pos + 1] & 0xff);
+	pos += 2;
+	return v;
+    }
+
+    private int u4() {
+	return (u2() << 16) | u2();
+    }
+
+    //
+    // Read the constant pool, remembering the UTF8 entries, and leave pos
+    // just past it.
+    //
+    private void readConstantPool() throws IOException {
+	pos = 0;
+	if (in.length < 10 || u4() != 0xcafebabe) {
+	    throw new IOException("Not a class file");
+	}
+	pos = 8;
+	cpCount = u2();
+	utf8 = new String[cpCount];
+	for (int i = 1; i < cpCount; i++) {
+	    int tag = u1();
+	    switch (tag) {
+		case 1:		// Utf8
+		    int len = u2();
+		    utf8[i] = new DataInputStream(
+			new ByteArrayInputStream(in, pos - 2, len + 2))
+			.readUTF();
+		    pos += len;
+		    break;
+		case 3:		// Integer
+		case 4:		// Float
+		case 9:		// Fieldref
+		case 10:	// Methodref
+		case 11:	// InterfaceMethodref
+		case 12:	// NameAndType
+		case 17:	// Dynamic
+		case 18:	// InvokeDynamic
+		    pos += 4;
+		    break;
+		case 5:		// Long
+		case 6:		// Double
+		    pos += 8;
+		    i++;
+		    break;
+		case 7:		// Class
+		case 8:		// String
+		case 16:	// MethodType
+		case 19:	// Module
+		case 20:	// Package
+		    pos += 2;
+		    break;
+		case 15:	// MethodHandle
+		    pos += 3;
+		    break;
+		default:
+		    throw new IOException("Unknown constant pool tag " + tag);
+	    }
+	}
+    }
+
+    private void skipMembers() {
+	int count = u2();
+	for (int i = 0; i < count; i++) {
+	    pos += 6;
+	    skipAttributes();
+	}
+    }
+
+    private void skipAttributes() {
+	int count = u2();
+	for (int i = 0; i < count; i++) {
+	    pos += 2;
+	    int len = u4();
+	    pos += len;
+	}
+    }
+
+    //
+    // Find the probes.  Each method that has code gets one, identified by
+    // its name and descriptor, like "get(I)V".  Then, if lines is true, 
+    // each line gets one, identified by its number, like "42".  A line
+    // that's in more than one method, like a field initializer that's in
+    // every constructor, gets one probe.
+    //
+    private List<String> findProbes(boolean lines) throws IOException {
+	readConstantPool();
+	pos += 6;
+	int interfaces = u2();
+	pos += 2 * interfaces;
+	skipMembers();
+	List<String> result = new ArrayList<>();
+	Set<Integer> found = new TreeSet<>();
+	int count = u2();
+	for (int i = 0; i < count; i++) {
+	    pos += 2;
+	    String method = utf8[u2()] + utf8[u2()];
+	    int attrs = u2();
+	    for (int j = 0; j < attrs; j++) {
+		String name = utf8[u2()];
+		int len = u4();
+		int end = pos + len;
+		if ("Code".equals(name)) {
+		    result.add(method);
+		    if (lines) {
+			pos += 4;
+			int codeLength = u4();
+			pos += codeLength;
+			for (int[] entry : readLineNumbers()) {
+			    found.add(entry[1]);
+			}
+		    }
+		}
+		pos = end;
+	    }
+	}
+	if (result.size() + found.size() <= Short.MAX_VALUE) {
+	    for (int line : found) {
+		lineProbes.put(line, result.size());
+		result.add(Integer.toString(line));
+	    }
+	}
+	return result;
+    }
+
+    //
+    // Read the entries of a Code attribute's line number tables, as
+    // { start_pc, line_number }, with pos just past the code.  pos is
+    // left where it was.
+    //
+    private List<int[]> readLineNumbers() {
+	int start = pos;
+	List<int[]> result = new ArrayList<>();
+	int handlers = u2();
+	pos += 8 * handlers;
+	int attrs = u2();
+	for (int i = 0; i < attrs; i++) {
+	    String name = utf8[u2()];
+	    int len = u4();
+	    int end = pos + len;
+	    if ("LineNumberTable".equals(name)) {
+		int entries = u2();
+		for (int j = 0; j < entries; j++) {
+		    result.add(new int[] { u2(), u2() });
+		}
+	    }
+	    pos = end;
+	}
+	pos = start;
+	return result;
+    }
+
+    private byte[] rewrite(int classId) throws IOException {
+	if (cpCount + 7 > 0xffff) {
+	    throw new IOException("Constant pool is full");
+	}
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.length + 256);
+	DataOutputStream out = new DataOutputStream(bytes);
+	readConstantPool();
+	out.write(in, 0, 8);
+	out.writeShort(cpCount + 7);
+	out.write(in, 10, pos - 10);
+	int probesUtf8 = cpCount;
+	out.writeByte(1);
+	out.writeUTF(PROBES);
+	out.writeByte(7);
+	out.writeShort(probesUtf8);
+	out.writeByte(1);
+	out.writeUTF("hit");
+	out.writeByte(1);
+	out.writeUTF("(II)V");
+	out.writeByte(12);
+	out.writeShort(cpCount + 2);
+	out.writeShort(cpCount + 3);
+	hitRef = cpCount + 5;
+	out.writeByte(10);
+	out.writeShort(cpCount + 1);
+	out.writeShort(cpCount + 4);
+	classIdConst = cpCount + 6;
+	out.writeByte(3);
+	out.writeInt(classId);
+
+	int start = pos;
+	pos += 6;
+	int interfaces = u2();
+	pos += 2 * interfaces;
+	skipMembers();
+	out.write(in, start, pos - start);
+
+	int method = 0;
+	int count = u2();
+	out.writeShort(count);
+	for (int i = 0; i < count; i++) {
+	    out.write(in, pos, 6);
+	    pos += 6;
+	    int attrs = u2();
+	    out.writeShort(attrs);
+	    for (int j = 0; j < attrs; j++) {
+		int name = u2();
+		int len = u4();
+		out.writeShort(name);
+		if ("Code".equals(utf8[name])) {
+		    byte[] code = rewriteCode(len, method++);
+		    out.writeInt(code.length);
+		    out.write(code);
+		} else {
+		    out.writeInt(len);
+		    out.write(in, pos, len);
+		    pos += len;
+		}
+	    }
+	}
+	out.write(in, pos, in.length - pos);
+	out.flush();
+	return bytes.toByteArray();
+    }
+
+    private byte[] probe(int index) {
+	return new byte[] { 
+	    0x13, (byte) (classIdConst >> 8), (byte) classIdConst,
+	    0x11, (byte) (index >> 8), (byte) index,
+	    (byte) 0xb8, (byte) (hitRef >> 8), (byte) hitRef,
+	    0, 0, 0 
+	};
+    }
+
+    //
+    // Rewrite a Code attribute, with the method's probe at the start, and
+    // line probes if there's room for them.
+    //
+    private byte[] rewriteCode(int len, int method) throws IOException {
+	int start = pos;
+	byte[] result = rewriteCode(len, method, !lineProbes.isEmpty());
+	if (result == null) {
+	    pos = start;
+	    result = rewriteCode(len, method, false);
+	}
+	if (result == null) {
+	    // There's no room for any probe.
+	    result = Arrays.copyOfRange(in, start, start + len);
+	    pos = start + len;
+	}
+	return result;
+    }
+
+    //
+    // Returns null if the probes don't fit.
+    //
+    private byte[] rewriteCode(int len, int method, boolean lines) 
+	    throws IOException 
+    {
+	int end = pos + len;
+	int maxStack = u2();
+	int maxLocals = u2();
+	int codeLength = u4();
+	int codeStart = pos;
+	pos += codeLength;
+	lineAt = new int[codeLength];
+	Arrays.fill(lineAt, -1);
+	if (lines) {
+	    for (int[] entry : readLineNumbers()) {
+		if (entry[0] < codeLength && lineAt[entry[0]] < 0) {
+		    lineAt[entry[0]] = lineProbes.get(entry[1]);
+		}
+	    }
+	}
+	target = new int[codeLength + 1];
+	int added = PROBE_LENGTH;
+	for (int x = 0; x < codeLength; x++) {
+	    target[x] = x + added;
+	    if (lineAt[x] >= 0) {
+		added += PROBE_LENGTH;
+	    }
+	}
+	target[codeLength] = codeLength + added;
+	if (codeLength + added > 0xffff || maxStack + PROBE_STACK > 0xffff) {
+	    return null;
+	}
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(len + added);
+	DataOutputStream out = new DataOutputStream(bytes);
+	// A line can start with something already on the stack.
+	out.writeShort(lines ? maxStack + PROBE_STACK 
+			     : Math.max(maxStack, PROBE_STACK));
+	out.writeShort(maxLocals);
+	out.writeInt(codeLength + added);
+	out.write(probe(method));
+	if (!lines) {
+	    out.write(in, codeStart, codeLength);
+	} else {
+	    pos = codeStart;
+	    while (pos < codeStart + codeLength) {
+		int x = pos - codeStart;
+		if (lineAt[x] >= 0) {
+		    out.write(probe(lineAt[x]));
+		}
+		if (!copyInstruction(x, out)) {
+		    return null;
+		}
+	    }
+	}
+	pos = codeStart + codeLength;
+	int handlers = u2();
+	out.writeShort(handlers);
+	for (int i = 0; i < handlers; i++) {
+	    out.writeShort(moved(u2()));
+	    out.writeShort(moved(u2()));
+	    out.writeShort(moved(u2()));
+	    out.writeShort(u2());
+	}
+
+	ByteArrayOutputStream attrBytes = new ByteArrayOutputStream();
+	DataOutputStream attrOut = new DataOutputStream(attrBytes);
+	int kept = 0;
+	int attrs = u2();
+	for (int i = 0; i < attrs; i++) {
+	    int name = u2();
+	    int attrLen = u4();
+	    int attrEnd = pos + attrLen;
+	    String n = utf8[name];
+	    ByteArrayOutputStream b = new ByteArrayOutputStream(attrLen + 16);
+	    DataOutputStream o = new DataOutputStream(b);
+	    if ("LineNumberTable".equals(n)) {
+		int entries = u2();
+		o.writeShort(entries);
+		for (int j = 0; j < entries; j++) {
+		    o.writeShort(moved(u2()));
+		    o.writeShort(u2());
+		}
+	    } else if ("LocalVariableTable".equals(n)
+		       || "LocalVariableTypeTable".equals(n))
+	    {
+		int entries = u2();
+		o.writeShort(entries);
+		for (int j = 0; j < entries; j++) {
+		    int startPc = u2();
+		    int length = u2();
+		    o.writeShort(moved(startPc));
+		    o.writeShort(moved(startPc + length) - moved(startPc));
+		    o.write(in, pos, 6);
+		    pos += 6;
+		}
+	    } else if ("StackMapTable".equals(n)) {
+		rewriteFrames(o);
+	    } else if ("RuntimeVisibleTypeAnnotations".equals(n)
+		       || "RuntimeInvisibleTypeAnnotations".equals(n))
+	    {
+		// These hold code offsets too, deep inside, but nothing at
+		// run time needs them, so they're dropped.
+		pos = attrEnd;
+		continue;
+	    } else {
+		o.write(in, pos, attrLen);
+		pos = attrEnd;
+	    }
+	    if (pos != attrEnd) {
+		throw new IOException("Bad " + n + " attribute");
+	    }
+	    o.flush();
+	    attrOut.writeShort(name);
+	    attrOut.writeInt(b.size());
+	    b.writeTo(attrOut);
+	    kept++;
+	}
+	out.writeShort(kept);
+	attrOut.flush();
+	attrBytes.writeTo(out);
+	out.flush();
+	if (pos != end) {
+	    throw new IOException("Bad Code attribute");
+	}
+	return bytes.toByteArray();
+    }
+
+    //
+    // Where a code offset has moved to.  An offset with a line probe moves
+    // to the probe.
+    //
+    private int moved(int offset) throws IOException {
+	if (offset < 0 || offset >= target.length) {
+	    throw new IOException("Bad code offset " + offset);
+	}
+	return target[offset];
+    }
+
+    //
+    // Where the instruction at a code offset has moved to, which is after
+    // its line probe, if it has one.
+    //
+    private int movedInstruction(int offset) throws IOException {
+	int result = moved(offset);
+	return (offset < lineAt.length && lineAt[offset] >= 0) 
+		? result + PROBE_LENGTH : result;
+    }
+
+    //
+    // Copy the instruction at pos, which is at offset x in the code, with
+    // its branches moved.  Returns false if a branch no longer reaches.
+    //
+    private boolean copyInstruction(int x, DataOutputStream out) 
+	    throws IOException
+    {
+	int op = in[pos] & 0xff;
+	int from = movedInstruction(x);
+	if ((op >= 0x99 && op <= 0xa8) || op == 0xc6 || op == 0xc7) {
+	    // if*, goto, jsr, ifnull, ifnonnull
+	    pos++;
+	    int branch = moved(x + (short) u2()) - from;
+	    if (branch != (short) branch) {
+		return false;
+	    }
+	    out.writeByte(op);
+	    out.writeShort(branch);
+	} else if (op == 0xc8 || op == 0xc9) {
+	    // goto_w, jsr_w
+	    pos++;
+	    out.writeByte(op);
+	    out.writeInt(moved(x + u4()) - from);
+	} else if (op == 0xaa || op == 0xab) {
+	    // tableswitch, lookupswitch.  Every probe is a multiple of four 
+	    // bytes, so the padding is the same.
+	    int pad = 3 - (x & 3);
+	    out.write(in, pos, 1 + pad);
+	    pos += 1 + pad;
+	    out.writeInt(moved(x + u4()) - from);
+	    if (op == 0xaa) {
+		int low = u4();
+		int high = u4();
+		out.writeInt(low);
+		out.writeInt(high);
+		for (long i = low; i <= high; i++) {
+		    out.writeInt(moved(x + u4()) - from);
+		}
+	    } else {
+		int pairs = u4();
+		out.writeInt(pairs);
+		for (int i = 0; i < pairs; i++) {
+		    out.writeInt(u4());
+		    out.writeInt(moved(x + u4()) - from);
+		}
+	    }
+	} else {
+	    int n = LENGTHS[op];
+	    if (op == 0xc4) {
+		// wide
+		n = ((in[pos + 1] & 0xff) == 0x84) ? 6 : 4;
+	    } else if (n == 0) {
+		throw new IOException("Bad opcode " + op);
+	    }
+	    out.write(in, pos, n);
+	    pos += n;
+	}
+	return true;
+    }
+
+    //
+    // Rewrite a StackMapTable.  Each frame's offset is relative to the one
+    // before, so they're worked out, moved, and made relative again.  An
+    // uninitialized type holds the offset of its "new" instruction, so 
+    // those move too.
+    //
+    private void rewriteFrames(DataOutputStream out) throws IOException {
+	int frames = u2();
+	out.writeShort(frames);
+	int offset = -1;
+	int newOffset = -1;
+	for (int i = 0; i < frames; i++) {
+	    int type = u1();
+	    int delta = (type < 64) ? type 
+	    		: (type < 128) ? type - 64 
+			: (type >= 247) ? u2() 
+			: -1;
+	    if (delta < 0) {
+		throw new IOException("Bad stack map frame type " + type);
+	    }
+	    offset += delta + 1;
+	    delta = moved(offset) - newOffset - 1;
+	    newOffset += delta + 1;
+	    if (type < 64 || type == 251) {
+		// same_frame, or same_frame_extended
+		if (delta < 64) {
+		    out.writeByte(delta);
+		} else {
+		    out.writeByte(251);
+		    out.writeShort(delta);
+		}
+	    } else if (type < 128 || type == 247) {
+		// same_locals_1_stack_item, possibly extended
+		if (delta < 64) {
+		    out.writeByte(64 + delta);
+		} else {
+		    out.writeByte(247);
+		    out.writeShort(delta);
+		}
+		copyTypes(out, 1);
+	    } else if (type < 251) {
+		// chop_frame
+		out.writeByte(type);
+		out.writeShort(delta);
+	    } else if (type < 255) {
+		// append_frame
+		out.writeByte(type);
+		out.writeShort(delta);
+		copyTypes(out, type - 251);
+	    } else {
+		// full_frame
+		out.writeByte(type);
+		out.writeShort(delta);
+		int locals = u2();
+		out.writeShort(locals);
+		copyTypes(out, locals);
+		int stack = u2();
+		out.writeShort(stack);
+		copyTypes(out, stack);
+	    }
+	}
+    }
+
+    private void copyTypes(DataOutputStream out, int count) 
+	    throws IOException 
+    {
+	for (int i = 0; i < count; i++) {
+	    int tag = u1();
+	    out.writeByte(tag);
+	    if (tag == 7) {
+		// Object
+		out.writeShort(u2());
+	    } else if (tag == 8) {
+		// Uninitialized
+		out.writeShort(movedInstruction(u2()));
+	    } else if (tag > 8) {
+		throw new IOException("Bad verification type " + tag);
+	    }
+	}
+    }
+}
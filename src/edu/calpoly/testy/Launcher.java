@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a test program and runs it, all in one JVM, without writing any
+ * class files.  The sources are compiled in memory with 
+ * <code>javax.tools.JavaCompiler</code>, and the classes are loaded 
+ * straight from there.  Run it like this:
+ * <pre>
+ *
+ *     java -cp testy.jar edu.calpoly.testy.Launcher -sourcepath src \
+ *          MainClass [args...]
+ * </pre>
+ * The main class's source is compiled, along with any other sources in
+ * the <code>-sourcepath</code> that it uses.  This class doesn't depend
+ * on the rest of Testy, so on JDK 11 and later, it can itself be run
+ * from source, with the Testy sources in the <code>-sourcepath</code>:
+ * <pre>
+ *
+ *     java Launcher.java -sourcepath src:testy/src MainClass
+ * </pre>
+ * This needs a JDK, not just a JRE.
+ */
+public final class Launcher {
+
+    private Launcher() {
+    }
+
+    /**
+     * Compile the main class, and run it.
+     *
+     * @param args	<code>-sourcepath dirs MainClass [args...]</code>
+     * @throws Throwable if the main class throws anything
+     */
+    public static void main(String[] args) throws Throwable {
+	if (args.length < 3 || !"-sourcepath".equals(args[0])) {
+	    System.err.println("Usage:  java edu.calpoly.testy.Launcher "
+			       + "-sourcepath dirs MainClass [args...]");
+	    System.exit(1);
+	}
+	String sourcepath = args[1];
+	String mainClass = args[2];
+	String relative = mainClass.replace('.', File.separatorChar) + ".java";
+	File source = null;
+	for (String dir : sourcepath.split(File.pathSeparator)) {
+	    File f = new File(dir, relative);
+	    if (f.exists()) {
+		source = f;
+		break;
+	    }
+	}
+	if (source == null) {
+	    System.err.println("Can't find " + relative + " in " + sourcepath);
+	    System.exit(1);
+	}
+	Map<String, byte[]> classes = new ConcurrentHashMap<>();
+	if (!compile(sourcepath, Arrays.asList(source), true, classes, null)) {
+	    System.exit(1);
+	}
+	ClassLoader loader 
+	    = newLoader(classes, Launcher.class.getClassLoader());
+	runMain(loader, mainClass, Arrays.copyOfRange(args, 3, args.length));
+    }
+
+    //
+    // Compile the given sources, putting the classes into the given map,
+    // keyed by binary name.  Other sources in the sourcepath that are used
+    // are compiled too if implicit is true;  otherwise, they're only read 
+    // to resolve names.  If origins isn't null, the URI of the source each
+    // class came from is put in it, keyed the same way.  Errors are 
+    // reported to System.err.  Returns true on success.
+    //
+    static boolean compile(String sourcepath, List<File> sources, 
+    			   boolean implicit, Map<String, byte[]> classes,
+			   Map<String, URI> origins)
+	    throws IOException
+    {
+	JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+	if (compiler == null) {
+	    throw new IllegalStateException(
+		    "No Java compiler available.  Please run with a JDK.");
+	}
+	List<String> options = new ArrayList<>();
+	options.add("-sourcepath");
+	options.add(sourcepath);
+	options.add("-implicit:" + (implicit ? "class" : "none"));
+	options.add("-Xlint:unchecked");
+	try (StandardJavaFileManager std 
+		= compiler.getStandardFileManager(null, null, null);
+	     JavaFileManager fm = new MemoryFileManager(std, classes, origins))
+	{
+	    Iterable<? extends JavaFileObject> units 
+		= std.getJavaFileObjectsFromFiles(sources);
+	    return compiler.getTask(null, fm, null, options, null, units)
+			   .call();
+	}
+    }
+
+    //
+    // Make a class loader for classes compiled by compile().  It keeps
+    // a reference to the map, so classes compiled later can be found
+    // too, as long as they haven't been loaded already.  Their class 
+    // files can be read as resources.
+    //
+    static ClassLoader newLoader(final Map<String, byte[]> classes, 
+    				 ClassLoader parent) 
+    {
+	return new ClassLoader(parent) {
+	    @Override
+	    protected Class<?> findClass(String name) 
+		    throws ClassNotFoundException
+	    {
+		byte[] b = classes.get(name);
+		if (b == null) {
+		    throw new ClassNotFoundException(name);
+		}
+		return defineClass(name, b, 0, b.length);
+	    }
+
+	    @Override
+	    public InputStream getResourceAsStream(String name) {
+		InputStream in = super.getResourceAsStream(name);
+		if (in == null && name.endsWith(".class")) {
+		    String cl = name.substring(0, name.length() - 6)
+				    .replace('/', '.');
+		    byte[] b = classes.get(cl);
+		    if (b != null) {
+			in = new ByteArrayInputStream(b);
+		    }
+		}
+		return in;
+	    }
+	};
+    }
+
+    //
+    // Run the main method of the given class, with the loader as the 
+    // context class loader.
+    //
+    static void runMain(ClassLoader loader, String mainClass, String[] args)
+	    throws Throwable
+    {
+	Thread thread = Thread.currentThread();
+	ClassLoader oldContext = thread.getContextClassLoader();
+	try {
+	    thread.setContextClassLoader(loader);
+	    Class<?> cl = Class.forName(mainClass, true, loader);
+	    Method main = cl.getMethod("main", String[].class);
+	    main.invoke(null, (Object) args);
+	} catch (InvocationTargetException ex) {
+	    throw ex.getCause();
+	} finally {
+	    thread.setContextClassLoader(oldContext);
+	}
+    }
+
+    //
+    // Sends the compiler's class file output to a map, instead of to disk.
+    //
+    private static final class MemoryFileManager 
+	    extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+	private final Map<String, byte[]> classes;
+	private final Map<String, URI> origins;
+
+	MemoryFileManager(StandardJavaFileManager std, 
+			  Map<String, byte[]> classes, Map<String, URI> origins) 
+	{
+	    super(std);
+	    this.classes = classes;
+	    this.origins = origins;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, 
+		final String className, JavaFileObject.Kind kind, 
+		FileObject sibling) throws IOException
+	{
+	    if (kind != JavaFileObject.Kind.CLASS) {
+		return super.getJavaFileForOutput(location, className, kind, 
+						  sibling);
+	    }
+	    if (origins != null && sibling != null) {
+		origins.put(className, sibling.toUri());
+	    }
+	    URI uri = URI.create("memory:///" + className.replace('.', '/')
+	    			 + kind.extension);
+	    return new SimpleJavaFileObject(uri, kind) {
+		@Override
+		public OutputStream openOutputStream() {
+		    return new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+			    classes.put(className, toByteArray());
+			}
+		    };
+		}
+	    };
+	}
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+/**
+ * Things that can be done faster on newer versions of Java.  This is the
+ * Java 8 version.  <code>testy.jar</code> is a multi-release jar, with
+ * versions of this class for newer releases under 
+ * <code>META-INF/versions</code>;  their sources are in 
+ * <code>src-</code><i>version</i>.  They all have the same methods.
+ */
+final class Platform {
+
+    private Platform() {
+    }
+
+    //
+    // Called in each pass of a busy-wait loop.
+    //
+    static void onSpinWait() {
+    }
+
+    //
+    // The index of the first difference in the first length elements of
+    // a and b, or -1 if there isn't one.
+    //
+    static int mismatch(byte[] a, byte[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(char[] a, char[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(boolean[] a, boolean[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(short[] a, short[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(int[] a, int[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(long[] a, long[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[i] != b[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    //
+    // Floating point values are compared as by equals(), so NaN is equal
+    // to itself, and 0.0 isn't equal to -0.0.
+    //
+    static int mismatch(float[] a, float[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (Float.floatToIntBits(a[i]) != Float.floatToIntBits(b[i])) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    static int mismatch(double[] a, double[] b, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (Double.doubleToLongBits(a[i])
+		!= Double.doubleToLongBits(b[i])) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The probes that {@link Agent} puts into the classes it instruments.
+ * Each class gets an array with one flag per method, which is set when 
+ * the method is entered, and, when there's coverage, one per line, which
+ * is set when the line is started.  Setting a flag is just an array store, with no
+ * synchronization, so it costs very little.  The flags are only cleared
+ * between tests, by the thread running them, so a lost update doesn't 
+ * matter.  When they're cleared, they're added to a running total first,
+ * for {@link Coverage}.
+ */
+public final class Probes {
+
+    //
+    // Set by the agent, for all copies of Testy to see.
+    //
+    static final String AGENT_PROPERTY = "testy.agent";
+
+    private static final Object lock = new Object();
+
+    private static volatile boolean[][] probes = new boolean[256][];
+
+    //
+    // probes, as last seen by hit(), read without the cost of a volatile 
+    // read, so the JIT can keep it in a register.  It can be out of date,
+    // but a class's array never changes once it's registered, so that's
+    // only a problem for a class that's new, and then hit() reads probes.
+    //
+    private static boolean[][] cached = probes;
+    private static boolean[][] totals = new boolean[256][];
+    private static String[] names = new String[256];
+    private static String[][] methods = new String[256][];
+    private static long[] hashes = new long[256];
+    private static volatile int count;
+    private static volatile boolean installed;
+
+    private Probes() {
+    }
+
+    /**
+     * Record that a method was entered, or a line was started.  This is
+     * called by instrumented code; it isn't meant to be called directly.
+     *
+     * @param classId	The number given to the class when it was loaded
+     * @param method	The index of the method or line in the class
+     */
+    public static void hit(int classId, int method) {
+	boolean[][] p = cached;
+	if (classId >= p.length || p[classId] == null) {
+	    p = probes;
+	    cached = p;
+	}
+	p[classId][method] = true;
+    }
+
+    static void setInstalled() {
+	installed = true;
+    }
+
+    //
+    // True if the agent is instrumenting classes as they're loaded.
+    //
+    static boolean isInstalled() {
+	return installed;
+    }
+
+    //
+    // True if the agent is running, but this copy of Testy was loaded by 
+    // a different class loader from the agent's, so the probes that the 
+    // classes call aren't these ones.
+    //
+    static boolean isShadowed() {
+	return !installed && System.getProperty(AGENT_PROPERTY) != null;
+    }
+
+    //
+    // Give a class that's being loaded a number, and an array of probes
+    // for its methods and lines.  hash is a hash of its class file.  A 
+    // class that's loaded more than once, by different class loaders, gets
+    // a number each time.
+    //
+    static int register(String className, String[] classMethods, long hash) {
+	synchronized(lock) {
+	    int id = count;
+	    boolean[][] p = probes;
+	    if (id == p.length) {
+		p = Arrays.copyOf(p, id * 2);
+		totals = Arrays.copyOf(totals, id * 2);
+		names = Arrays.copyOf(names, id * 2);
+		methods = Arrays.copyOf(methods, id * 2);
+		hashes = Arrays.copyOf(hashes, id * 2);
+	    }
+	    p[id] = new boolean[classMethods.length];
+	    totals[id] = new boolean[classMethods.length];
+	    names[id] = className;
+	    methods[id] = classMethods;
+	    hashes[id] = hash;
+	    probes = p;
+	    count = id + 1;
+	    return id;
+	}
+    }
+
+    //
+    // Clear all of the probes, after adding them to the totals.
+    //
+    static void reset() {
+	synchronized(lock) {
+	    for (int i = 0; i < count; i++) {
+		boolean[] p = probes[i];
+		boolean[] t = totals[i];
+		for (int j = 0; j < p.length; j++) {
+		    if (p[j]) {
+			t[j] = true;
+			p[j] = false;
+		    }
+		}
+	    }
+	}
+    }
+
+    //
+    // Get the classes that have had a method entered since the last reset,
+    // mapped to the hashes of their class files.  Class names have "/" 
+    // between the parts, as in a class file.
+    //
+    static Map<String, Long> touched() {
+	Map<String, Long> result = new HashMap<>();
+	synchronized(lock) {
+	    for (int i = 0; i < count; i++) {
+		if (isHit(probes[i])) {
+		    result.put(names[i], hashes[i]);
+		}
+	    }
+	}
+	return result;
+    }
+
+    //
+    // Get a copy of the probes that have been hit since the last reset,
+    // keyed by class number.  If total is true, the totals are included,
+    // so this has everything that's been hit since the agent started.
+    //
+    static Map<Integer, boolean[]> snapshot(boolean total) {
+	Map<Integer, boolean[]> result = new TreeMap<>();
+	synchronized(lock) {
+	    for (int i = 0; i < count; i++) {
+		boolean[] p = probes[i].clone();
+		if (total) {
+		    boolean[] t = totals[i];
+		    for (int j = 0; j < p.length; j++) {
+			p[j] |= t[j];
+		    }
+		}
+		if (total || isHit(p)) {
+		    result.put(i, p);
+		}
+	    }
+	}
+	return result;
+    }
+
+    private static boolean isHit(boolean[] p) {
+	for (boolean hit : p) {
+	    if (hit) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    static String getClassName(int classId) {
+	synchronized(lock) {
+	    return names[classId];
+	}
+    }
+
+    static String[] getMethods(int classId) {
+	synchronized(lock) {
+	    return methods[classId];
+	}
+    }
+
+    static long getHash(int classId) {
+	synchronized(lock) {
+	    return hashes[classId];
+	}
+    }
+}
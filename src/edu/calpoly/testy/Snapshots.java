@@ -0,0 +1,298 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.calpoly.testy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The snapshot files for 
+ * {@link Assert#assertMatchesSnapshot(String, String, Object)}.  Each 
+ * snapshot is a file in the snapshot directory, named after the 
+ * snapshot, with a one-line header giving the length and SHA-256 of the
+ * contents, like "testy-snapshot 1234 9f86d081...".  Checking a snapshot
+ * compares the headers, and only diffs the contents if they're 
+ * different.  The hash is a cryptographic one, so two different texts 
+ * can't have the same header by accident.  The first time a file is 
+ * used, its contents are checked against its own header too, so one 
+ * that was edited by hand is caught.  Nothing is read until a snapshot 
+ * is used, so having thousands of them doesn't slow down startup.  See 
+ * the "Snapshots" section of {@link Testy}.
+ */
+final class Snapshots {
+
+    private static final String MAGIC = "testy-snapshot";
+    private static final String SUFFIX = ".snap";
+    private static final int HEADER_MAX = 128;
+
+    //
+    // The settings are in their own class, so they're read when the first
+    // snapshot is used, and not when Testy tells us a run started.
+    //
+    private static final class Settings {
+	static final Path dir 
+	    = Paths.get(System.getProperty("testy.snapshotDir", "snapshots"));
+	static final String mode 
+	    = System.getProperty("testy.updateSnapshots", "false");
+	static final boolean prune = "prune".equalsIgnoreCase(mode);
+	static final boolean update = prune || "true".equalsIgnoreCase(mode);
+    }
+
+    private static final Set<String> used = new HashSet<>();
+    private static final Set<String> verified = new HashSet<>();
+
+    //
+    // The runs of tests that haven't finished, the ones that have, and
+    // whether any of those didn't run every test, or had one fail.
+    //
+    private static int running;
+    private static int finished;
+    private static boolean incomplete;
+
+    private Snapshots() {
+    }
+
+    //
+    // Check text against the named snapshot.  Returns null if it matches,
+    // or a description of the first difference.  A snapshot that doesn't
+    // exist yet is written, and so is one that's different, if we're
+    // updating.
+    //
+    static synchronized String check(String name, String text) 
+	throws IOException 
+    {
+	Path file = Settings.dir.resolve(fileName(name));
+	String key = file.getFileName().toString();
+	if (used.isEmpty() && Settings.prune) {
+	    Runtime.getRuntime().addShutdownHook(
+	    	new Thread(Snapshots::prune, "Testy snapshots"));
+	}
+	used.add(key);
+	byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+	MessageDigest digest = sha256();
+	digest.update(bytes);
+	String header = header(bytes.length, digest);
+	if (!Files.exists(file)) {
+	    write(file, header, bytes);
+	    verified.add(key);
+	    return null;
+	}
+	String problem = null;
+	try (FileChannel fc = FileChannel.open(file)) {
+	    ByteBuffer buf = ByteBuffer.allocate(HEADER_MAX);
+	    while (buf.hasRemaining() && fc.read(buf) > 0) {
+		// Keep reading, in case the header comes in pieces
+	    }
+	    String start = new String(buf.array(), 0, buf.position(),
+	    			      StandardCharsets.UTF_8);
+	    int nl = start.indexOf('\n');
+	    String stored = (nl < 0 || !start.startsWith(MAGIC + " ")) 
+	    		    ? null : start.substring(0, nl);
+	    int bodyStart = (nl < 0) ? 0 : start.substring(0, nl + 1)
+	    			 .getBytes(StandardCharsets.UTF_8).length;
+	    if (header.equals(stored)) {
+		if (verified.contains(key) 
+		    || matchesHeader(fc, bodyStart, stored)) 
+		{
+		    verified.add(key);
+		    return null;
+		}
+		problem = file + " isn't a snapshot file:  its contents don't "
+			  + "match its header, so it was changed by hand";
+	    } else if (stored == null) {
+		problem = file + " isn't a snapshot file";
+	    } else if (!Settings.update) {
+		ByteBuffer body = fc.map(FileChannel.MapMode.READ_ONLY, 
+					 bodyStart, fc.size() - bodyStart);
+		return diff(StandardCharsets.UTF_8.decode(body).toString(), 
+			    text);
+	    }
+	}
+	if (!Settings.update) {
+	    return problem;
+	}
+	write(file, header, bytes);
+	verified.add(key);
+	return null;
+    }
+
+    //
+    // Check that the contents of a snapshot file have the length and hash
+    // its header gives.
+    //
+    private static boolean matchesHeader(FileChannel fc, long bodyStart, 
+    					 String header)
+	throws IOException
+    {
+	MessageDigest digest = sha256();
+	ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+	long length = 0;
+	fc.position(bodyStart);
+	for (int n; (n = fc.read(buf)) > 0; ) {
+	    buf.flip();
+	    digest.update(buf);
+	    length += n;
+	    buf.clear();
+	}
+	return header.equals(header(length, digest));
+    }
+
+    private static String header(long length, MessageDigest digest) {
+	StringBuilder sb = new StringBuilder(MAGIC);
+	sb.append(' ').append(length).append(' ');
+	for (byte b : digest.digest()) {
+	    sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+	      .append(Character.forDigit(b & 0xf, 16));
+	}
+	return sb.toString();
+    }
+
+    private static MessageDigest sha256() {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException ex) {
+	    // Every JVM is required to have SHA-256
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    //
+    // Describe the first line that differs.  This is only done once the
+    // hashes have shown that something does.
+    //
+    private static String diff(String expected, String actual) {
+	String[] e = expected.split("\n", -1);
+	String[] a = actual.split("\n", -1);
+	int n = Math.min(e.length, a.length);
+	for (int i = 0; i < n; i++) {
+	    if (!e[i].equals(a[i])) {
+		return "line " + (i + 1) + " differs"
+		       + "\nexpected:  " + e[i]
+		       + "\nactual:    " + a[i];
+	    }
+	}
+	if (e.length != a.length) {
+	    return "expected " + e.length + " lines, got " + a.length;
+	}
+	return "contents differ";	// Only the header was damaged
+    }
+
+    private static void write(Path file, String header, byte[] bytes) 
+	throws IOException
+    {
+	Files.createDirectories(Settings.dir);
+	Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+	try (OutputStream out = Files.newOutputStream(tmp)) {
+	    out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+	    out.write(bytes);
+	}
+	Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    //
+    // Called by Testy when a run of tests starts.
+    //
+    static synchronized void runStarted() {
+	running++;
+    }
+
+    //
+    // Called by Testy when a run of tests finishes.  complete is true if
+    // every test was run, and passed.
+    //
+    static synchronized void runFinished(boolean complete) {
+	running--;
+	finished++;
+	if (!complete) {
+	    incomplete = true;
+	}
+    }
+
+    //
+    // When pruning, delete the snapshots that weren't used.  That's only
+    // safe if every test was run, and passed, since a test that was
+    // skipped, or failed, might not have got to its snapshots.  So it's
+    // only done if every run of tests finished that way.
+    //
+    private static void prune() {
+	synchronized (Snapshots.class) {
+	    if (running > 0 || finished == 0 || incomplete) {
+		System.err.println("Unused snapshots weren't pruned, since "
+				   + "not every test was run and passed.");
+		return;
+	    }
+	}
+	File[] files = Settings.dir.toFile().listFiles();
+	if (files == null) {
+	    return;
+	}
+	int pruned = 0;
+	synchronized (Snapshots.class) {
+	    for (File f : files) {
+		if (f.getName().endsWith(SUFFIX) 
+		    && !used.contains(f.getName()) && f.delete()) 
+		{
+		    pruned++;
+		}
+	    }
+	}
+	if (pruned > 0) {
+	    System.err.println("Pruned " + pruned + " unused snapshots from " 
+	    		       + Settings.dir);
+	}
+    }
+
+    //
+    // Turn a snapshot name into a file name, escaping any characters that 
+    // might not be allowed.
+    //
+    private static String fileName(String name) {
+	StringBuilder sb = new StringBuilder();
+	for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+	    char c = (char) (b & 0xff);
+	    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') 
+	        || (c >= '0' && c <= '9') || c == '-' || c == '_' 
+		|| (c == '.' && sb.length() > 0))
+	    {
+		sb.append(c);
+	    } else {
+		sb.append(String.format("%%%02X", (int) c));
+	    }
+	}
+	return sb + SUFFIX;
+    }
+}
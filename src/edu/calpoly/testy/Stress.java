@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The harness behind {@link Testy#stress(StressActor[], int, StressArbiter)}.
+ * Each actor gets a thread of its own, which spins on a volatile round 
+ * number so that the actors are released at close to the same instant.
+ * The calling thread acts as the coordinator:  it resets the state, 
+ * releases a round, waits for every actor to arrive, and tallies the
+ * outcome.  Nothing in that loop allocates or takes a lock, so the
+ * harness itself doesn't add the memory barriers or pauses that would
+ * hide the races being looked for.
+ */
+final class Stress {
+
+    private final StressActor[] actors;
+    private final StressArbiter arbiter;
+    private final int[] results;
+    private final boolean yield;
+    private final AtomicInteger arrived = new AtomicInteger();
+    private volatile int round;		// -1 means stop
+    private volatile Throwable error;
+
+    private Stress(StressActor[] actors, StressArbiter arbiter) {
+	this.actors = actors.clone();
+	this.arbiter = arbiter;
+	this.results = new int[actors.length];
+	// If there aren't enough CPUs for everyone to spin, we have to
+	// give them up now and then, or we'll take forever.
+	this.yield 
+	    = Runtime.getRuntime().availableProcessors() <= actors.length;
+    }
+
+    static void run(StressActor[] actors, int iterations, 
+    		    StressArbiter arbiter) 
+    {
+	if (actors.length == 0) {
+	    throw new IllegalArgumentException("No actors");
+	}
+	new Stress(actors, arbiter).run(iterations);
+    }
+
+    private void run(int iterations) {
+	int n = actors.length;
+	Thread[] threads = new Thread[n];
+	for (int i = 0; i < n; i++) {
+	    final int index = i;
+	    threads[i] = new Thread(() -> actorLoop(index), 
+	    			    "Testy stress actor " + i);
+	    threads[i].setDaemon(true);
+	    threads[i].start();
+	}
+	Tally tally = new Tally(n);
+	int target = 0;
+	try {
+	    for (int k = 1; k <= iterations; k++) {
+		arbiter.reset();
+		round = k;
+		target += n;	// Wraps around the same way arrived does
+		while (arrived.get() != target) {
+		    spin();
+		}
+		if (error != null) {
+		    throw new TestFailed("Stress actor failed", error);
+		}
+		tally.add(results);
+	    }
+	} finally {
+	    round = -1;
+	}
+	for (Thread t : threads) {
+	    try {
+		t.join();
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	}
+	tally.report(iterations, arbiter);
+    }
+
+    private void actorLoop(int index) {
+	StressActor actor = actors[index];
+	int seen = 0;
+	for (;;) {
+	    int r;
+	    while ((r = round) == seen) {
+		spin();
+	    }
+	    if (r < 0) {
+		return;
+	    }
+	    seen = r;
+	    try {
+		results[index] = actor.act();
+	    } catch (Throwable t) {
+		error = t;
+	    }
+	    arrived.incrementAndGet();
+	}
+    }
+
+    private void spin() {
+	if (yield) {
+	    Thread.yield();
+	} else {
+	    Platform.onSpinWait();
+	}
+    }
+
+    //
+    // Counts of each distinct outcome tuple, in an open-addressed hash 
+    // table.  The tuples are stored end-to-end in one int array, so adding
+    // an outcome we've already seen doesn't allocate anything.
+    //
+    private static final class Tally {
+	private final int width;
+	private int[] keys;
+	private long[] counts;	// 0 means the slot is empty
+	private int size;
+
+	Tally(int width) {
+	    this.width = width;
+	    this.keys = new int[16 * width];
+	    this.counts = new long[16];
+	}
+
+	void add(int[] tuple) {
+	    int mask = counts.length - 1;
+	    int h = hash(tuple, 0) & mask;
+	    for (;;) {
+		if (counts[h] == 0) {
+		    System.arraycopy(tuple, 0, keys, h * width, width);
+		    counts[h] = 1;
+		    size++;
+		    if (size * 2 > counts.length) {
+			grow();
+		    }
+		    return;
+		} else if (matches(keys, h * width, tuple, 0)) {
+		    counts[h]++;
+		    return;
+		}
+		h = (h + 1) & mask;
+	    }
+	}
+
+	private int hash(int[] a, int off) {
+	    int h = 0;
+	    for (int i = 0; i < width; i++) {
+		h = 31 * h + a[off + i];
+	    }
+	    return h ^ (h >>> 16);
+	}
+
+	private boolean matches(int[] a, int aOff, int[] b, int bOff) {
+	    for (int i = 0; i < width; i++) {
+		if (a[aOff + i] != b[bOff + i]) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	private void grow() {
+	    int[] oldKeys = keys;
+	    long[] oldCounts = counts;
+	    keys = new int[oldKeys.length * 2];
+	    counts = new long[oldCounts.length * 2];
+	    int mask = counts.length - 1;
+	    for (int i = 0; i < oldCounts.length; i++) {
+		if (oldCounts[i] != 0) {
+		    int h = hash(oldKeys, i * width) & mask;
+		    while (counts[h] != 0) {
+			h = (h + 1) & mask;
+		    }
+		    System.arraycopy(oldKeys, i * width, keys, h * width, width);
+		    counts[h] = oldCounts[i];
+		}
+	    }
+	}
+
+	//
+	// Classify each outcome, and fail if any were forbidden.  The
+	// table is printed if anything other than acceptable outcomes 
+	// were seen.
+	//
+	void report(int iterations, StressArbiter arbiter) {
+	    StringBuilder sb = new StringBuilder();
+	    sb.append("Stress test of ").append(width).append(" actors, ")
+	      .append(iterations).append(" iterations:");
+	    boolean forbidden = false;
+	    boolean interesting = false;
+	    for (int i = 0; i < counts.length; i++) {
+		if (counts[i] != 0) {
+		    int[] tuple = Arrays.copyOfRange(keys, i * width, 
+		    				     (i + 1) * width);
+		    StressArbiter.Outcome o = arbiter.classify(tuple);
+		    forbidden |= o == StressArbiter.Outcome.FORBIDDEN;
+		    interesting |= o == StressArbiter.Outcome.INTERESTING;
+		    sb.append("\n    ").append(Arrays.toString(tuple))
+		      .append(":  ").append(counts[i]).append(" times, ")
+		      .append(o);
+		}
+	    }
+	    if (forbidden) {
+		throw new TestFailed(sb.toString());
+	    } else if (interesting) {
+		System.out.println(sb);
+	    }
+	}
+    }
+}
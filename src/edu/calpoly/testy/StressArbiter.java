@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+/**
+ * Judges the outcomes of a concurrency stress test, and resets any
+ * state the actors share between iterations.
+ *
+ * @see Testy#stress(StressActor[], int, StressArbiter)
+ */
+@FunctionalInterface
+public interface StressArbiter {
+
+    /**
+     * How an outcome of a stress test is classified.
+     */
+    public enum Outcome {
+	/** An outcome that is allowed. */
+	ACCEPTABLE,
+	/** An outcome that is allowed, but is worth reporting. */
+	INTERESTING,
+	/** An outcome that is not allowed, which fails the test. */
+	FORBIDDEN
+    }
+
+    /**
+     * Classify an outcome.  This is called once for each different
+     * outcome that was observed, after all the iterations are done.
+     *
+     * @param results	The values returned by the actors, in order
+     * @return how the outcome is classified
+     */
+    public Outcome classify(int[] results);
+
+    /**
+     * Reset the state the actors share, before each iteration.  This is
+     * called while none of the actors are running.  The default does
+     * nothing.
+     */
+    public default void reset() {
+    }
+
+}
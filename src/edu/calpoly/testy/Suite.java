@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A named group of tests, which can share fixtures and pools of
+ * reusable resources.  Suites can be 
+ * nested.  When a suite is given to {@link Testy#run(TestRunnable...)
+ * Testy.run()}, its tests are run as though they had been listed 
+ * individually, with names made from the names of the suites that 
+ * contain them, like <code>parser/large-input</code>.  For example:
+ * <pre>
+ *
+ *     Suite parser = Testy.suite("parser");
+ *     Fixture&lt;Index&gt; index = parser.fixture(() -&gt; Index.load(file),
+ *                                          i -&gt; i.close());
+ *     parser.add(
+ *         Testy.test("lookup", () -&gt; testLookup(index.get())),
+ *         Testy.test("scan", () -&gt; testScan(index.get()))
+ *     );
+ *     Testy.run(parser, otherTests);
+ * </pre>
+ * The index is loaded when the first test that uses it calls 
+ * <code>get()</code>, and closed once every test in the suite that was
+ * selected to run has finished.
+ *
+ * @see Testy#suite(String)
+ */
+public final class Suite implements TestRunnable {
+
+    private final String name;
+    private final List<TestRunnable> tests = new ArrayList<>();
+    private final List<Runnable> openers = new ArrayList<>();
+    private final List<Runnable> closers = new ArrayList<>();
+
+    Suite(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Add tests, or other suites, to this suite.
+     *
+     * @param tests	The tests to add
+     * @return this suite
+     */
+    public Suite add(TestRunnable... tests) {
+	Collections.addAll(this.tests, tests);
+	return this;
+    }
+
+    /**
+     * Make a fixture whose value is shared by the tests in this suite.
+     *
+     * @param <T>	The type of the value
+     * @param factory	Creates the value, when it's first needed
+     * @param teardown	Releases the value, when the suite is done
+     * @return the new fixture
+     */
+    public <T> Fixture<T> fixture(Fixture.Factory<T> factory, 
+    				  Fixture.Teardown<T> teardown) 
+    {
+	Fixture<T> f = new Fixture<>(factory, teardown);
+	closers.add(f::close);
+	return f;
+    }
+
+    /**
+     * Make a fixture whose value is shared by the tests in this suite,
+     * and which needs nothing done to release it.
+     *
+     * @param <T>	The type of the value
+     * @param factory	Creates the value, when it's first needed
+     * @return the new fixture
+     */
+    public <T> Fixture<T> fixture(Fixture.Factory<T> factory) {
+	return fixture(factory, null);
+    }
+
+    /**
+     * Make a pool of reusable instances for the tests in this suite to
+     * borrow.  The pool is filled before the suite's first test runs.  
+     * The size of the pool is the number of tests 
+     * <code>Testy</code> runs at once, given by the 
+     * <code>testy.parallelism</code> system property.
+     *
+     * @param <T>	The type of the instances
+     * @param factory	Creates the instances, before the suite's first test
+     * @param reset	Cleans up an instance when it's returned, or null
+     * @param teardown	Releases an instance when the suite is done, or null
+     * @return the new pool
+     */
+    public <T> FixturePool<T> pool(Fixture.Factory<T> factory, 
+    				   FixturePool.Reset<T> reset,
+    				   Fixture.Teardown<T> teardown) 
+    {
+	return pool(Testy.parallelism(), factory, reset, teardown);
+    }
+
+    /**
+     * Make a pool of reusable instances for the tests in this suite to
+     * borrow.
+     *
+     * @param <T>	The type of the instances
+     * @param size	The most instances to create
+     * @param factory	Creates the instances, before the suite's first test
+     * @param reset	Cleans up an instance when it's returned, or null
+     * @param teardown	Releases an instance when the suite is done, or null
+     * @return the new pool
+     */
+    public <T> FixturePool<T> pool(int size, Fixture.Factory<T> factory, 
+    				   FixturePool.Reset<T> reset,
+    				   Fixture.Teardown<T> teardown) 
+    {
+	FixturePool<T> p = new FixturePool<>(size, factory, reset, teardown);
+	openers.add(p::warm);
+	closers.add(p::close);
+	return p;
+    }
+
+    /**
+     * @return the name of this suite
+     */
+    @Override
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Run the tests in this suite, one after the other, stopping at the
+     * first one that fails.  The fixtures are torn down afterwards.  
+     * This is used when a suite is run as a single test;  
+     * <code>Testy.run()</code> runs each of the tests separately.
+     *
+     * @throws Throwable if a test fails
+     */
+    @Override
+    public void run() throws Throwable {
+	openFixtures();
+	try {
+	    for (TestRunnable t : tests) {
+		t.run();
+	    }
+	} finally {
+	    closeFixtures();
+	}
+    }
+
+    @Override
+    public String toString() {
+	return name;
+    }
+
+    private void openFixtures() {
+	for (Runnable o : openers) {
+	    o.run();
+	}
+    }
+
+    private void closeFixtures() {
+	for (Runnable c : closers) {
+	    c.run();
+	}
+    }
+
+    //
+    // The state of the suites during one call to Testy.run().  The tests
+    // in the suites are flattened into one array of leaves, and each
+    // suite counts the leaves that have yet to finish, so it knows when 
+    // to close its fixtures.
+    //
+    static final class Tracker {
+	final TestRunnable[] leaves;
+	private final Suite[][] owners;		// Suites around each leaf
+	private final IdentityHashMap<Suite, int[]> remaining 
+	    = new IdentityHashMap<>();
+	private final IdentityHashMap<Suite, Boolean> started 
+	    = new IdentityHashMap<>();
+
+	private Tracker(List<TestRunnable> leaves, List<Suite[]> owners) {
+	    this.leaves = leaves.toArray(new TestRunnable[leaves.size()]);
+	    this.owners = owners.toArray(new Suite[owners.size()][]);
+	}
+
+	//
+	// Flatten the given tests, or return null if there aren't any 
+	// suites among them.
+	//
+	static Tracker create(TestRunnable[] tests) {
+	    boolean found = false;
+	    for (TestRunnable t : tests) {
+		found |= t instanceof Suite;
+	    }
+	    if (!found) {
+		return null;
+	    }
+	    List<TestRunnable> leaves = new ArrayList<>();
+	    List<Suite[]> owners = new ArrayList<>();
+	    for (TestRunnable t : tests) {
+		flatten(t, null, t.getName(), new Suite[0], leaves, owners);
+	    }
+	    return new Tracker(leaves, owners);
+	}
+
+	private static void flatten(TestRunnable t, String prefix, String name,
+				    Suite[] chain, List<TestRunnable> leaves,
+				    List<Suite[]> owners)
+	{
+	    String fullName = (prefix == null) ? name : (prefix + "/" + name);
+	    if (t instanceof Suite) {
+		Suite s = (Suite) t;
+		Suite[] inner = new Suite[chain.length + 1];
+		System.arraycopy(chain, 0, inner, 0, chain.length);
+		inner[chain.length] = s;
+		for (int i = 0; i < s.tests.size(); i++) {
+		    TestRunnable child = s.tests.get(i);
+		    String childName = child.getName();
+		    if (childName == null) {
+			childName = "#" + i;
+		    }
+		    flatten(child, fullName, childName, inner, leaves, owners);
+		}
+	    } else {
+		if (prefix != null) {
+		    t = Testy.test(fullName, t);
+		}
+		leaves.add(t);
+		owners.add(chain);
+	    }
+	}
+
+	//
+	// Note that the given leaf will be run.  This must be called for
+	// every leaf that's going to run, before any of them do.
+	//
+	void expect(int leaf) {
+	    for (Suite s : owners[leaf]) {
+		int[] count = remaining.get(s);
+		if (count == null) {
+		    remaining.put(s, new int[] { 1 });
+		} else {
+		    count[0]++;
+		}
+	    }
+	}
+
+	//
+	// Note that the given leaf is about to run, filling the pools of any
+	// suites that are starting.  Outer suites are started first.
+	//
+	void start(int leaf) {
+	    for (Suite s : owners[leaf]) {
+		if (started.put(s, Boolean.TRUE) == null) {
+		    s.openFixtures();
+		}
+	    }
+	}
+
+	//
+	// Note that the given leaf is done, closing the fixtures of any suites
+	// that are now finished.  Inner suites are closed first.
+	//
+	void finish(int leaf) {
+	    Suite[] chain = owners[leaf];
+	    for (int i = chain.length - 1; i >= 0; i--) {
+		int[] count = remaining.get(chain[i]);
+		if (count != null && --count[0] == 0) {
+		    remaining.remove(chain[i]);
+		    chain[i].closeFixtures();
+		}
+	    }
+	}
+
+	//
+	// Close the fixtures of any suites that haven't finished.
+	//
+	void finishAll() {
+	    for (Suite s : remaining.keySet()) {
+		s.closeFixtures();
+	    }
+	    remaining.clear();
+	}
+    }
+}
@@ -51,5 +51,6 @@ public class TestFailed extends RuntimeException {
      * @param cause	The cause of the exception
      */
     public TestFailed(String message, Throwable cause) {
+	super(message, cause);
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects tests by name, using the include and exclude patterns
+ * described in the "Selecting Tests" section of {@link Testy}.
+ */
+final class TestFilter {
+
+    private final Pattern[] includes;
+    private final Pattern[] excludes;
+
+    private TestFilter(List<Pattern> includes, List<Pattern> excludes) {
+	this.includes = includes.toArray(new Pattern[includes.size()]);
+	this.excludes = excludes.toArray(new Pattern[excludes.size()]);
+    }
+
+    //
+    // Create a filter from the testy.include and testy.exclude system
+    // properties, and from any --include= or --exclude= arguments.
+    // Returns null if there's nothing to filter.
+    //
+    static TestFilter create(String[] args) {
+	List<Pattern> includes = new ArrayList<>();
+	List<Pattern> excludes = new ArrayList<>();
+	addPatterns(System.getProperty("testy.include"), includes);
+	addPatterns(System.getProperty("testy.exclude"), excludes);
+	if (args != null) {
+	    for (String arg : args) {
+		if (arg.startsWith("--include=")) {
+		    addPatterns(arg.substring(10), includes);
+		} else if (arg.startsWith("--exclude=")) {
+		    addPatterns(arg.substring(10), excludes);
+		}
+	    }
+	}
+	if (includes.isEmpty() && excludes.isEmpty()) {
+	    return null;
+	}
+	return new TestFilter(includes, excludes);
+    }
+
+    private static void addPatterns(String list, List<Pattern> result) {
+	if (list == null) {
+	    return;
+	}
+	for (String p : list.split(",")) {
+	    p = p.trim();
+	    if (p.startsWith("regex:")) {
+		result.add(Pattern.compile(p.substring(6)));
+	    } else if (p.length() > 0) {
+		result.add(globToPattern(p));
+	    }
+	}
+    }
+
+    //
+    // In a glob, "**" matches anything, "*" matches anything but a "/",
+    // and "?" matches any one character but a "/".
+    //
+    static Pattern globToPattern(String glob) {
+	StringBuilder sb = new StringBuilder();
+	int start = 0;		// Start of the literal text not yet copied
+	for (int i = 0; i < glob.length(); i++) {
+	    char ch = glob.charAt(i);
+	    if (ch == '*' || ch == '?') {
+		if (i > start) {
+		    sb.append(Pattern.quote(glob.substring(start, i)));
+		}
+		if (ch == '?') {
+		    sb.append("[^/]");
+		} else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+		    sb.append(".*");
+		    i++;
+		} else {
+		    sb.append("[^/]*");
+		}
+		start = i + 1;
+	    }
+	}
+	if (start < glob.length()) {
+	    sb.append(Pattern.quote(glob.substring(start)));
+	}
+	return Pattern.compile(sb.toString());
+    }
+
+    //
+    // Is the test with the given name selected?  A test without a name
+    // is only run if there are no include patterns.
+    //
+    boolean accepts(String name) {
+	if (name == null) {
+	    return includes.length == 0;
+	}
+	if (includes.length > 0 && !matchesAny(includes, name)) {
+	    return false;
+	}
+	return !matchesAny(excludes, name);
+    }
+
+    private static boolean matchesAny(Pattern[] patterns, String name) {
+	for (Pattern p : patterns) {
+	    if (p.matcher(name).matches()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+}
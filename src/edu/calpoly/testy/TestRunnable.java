@@ -39,4 +39,16 @@ public interface TestRunnable {
      */
     public void run() throws Throwable;
 
+    /**
+     * Give the name of this test, which is used to report it, and to
+     * select it with the filters described in {@link Testy}.  By default,
+     * tests don't have a name.  A named test can be made with
+     * {@link Testy#test(String, TestRunnable)}.
+     *
+     * @return  the name of the test, or null if it doesn't have one
+     */
+    public default String getName() {
+	return null;
+    }
+
 }
@@ -22,7 +22,11 @@
 
 package edu.calpoly.testy;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The main entry point for Testy.  To run a series of tests,
@@ -57,6 +61,148 @@ import java.util.Collection;
  *     );
  * </pre>
  *
+ * <h3>Selecting Tests</h3>
+ * Tests can be given names with {@link #test(String, TestRunnable)}.
+ * Tests in a {@link Suite} are named after the suites that contain them.
+ * A subset of the named tests can then be run, by setting the
+ * <code>testy.include</code> or <code>testy.exclude</code> system 
+ * properties, or by passing <code>--include=</code> or 
+ * <code>--exclude=</code> arguments to 
+ * {@link #run(String[], TestRunnable...)}.  Each of these is a 
+ * comma-separated list of patterns.  A pattern is a glob, where 
+ * <code>*</code> matches anything but a <code>/</code>, <code>**</code>
+ * matches anything, and <code>?</code> matches a single character.  A
+ * pattern that starts with <code>regex:</code> is a regular expression
+ * instead.  A test runs if its name matches an include pattern, or if
+ * there aren't any, and it doesn't match an exclude pattern.  Tests
+ * without a name only run when there are no include patterns.
+ *
+ * <h3>Resource Limits</h3>
+ * When running code that can't be trusted to finish, like a student's
+ * submission, per-test budgets can be set with these system properties:
+ * <ul>
+ *   <li><code>testy.cpuLimit</code> &mdash; the CPU time a test may use,
+ *	 in milliseconds.
+ *   <li><code>testy.allocLimit</code> &mdash; the number of bytes a test 
+ *	 may allocate.
+ *   <li><code>testy.monitorInterval</code> &mdash; how often to check, in
+ *	 milliseconds.  The default is 100.
+ * </ul>
+ * When a limit is set, each test is run on its own thread, which is
+ * watched by the thread that called <code>run()</code>.  A test that goes 
+ * over budget is stopped, and fails with {@link ResourceExceeded}.  
+ * Only the test's own thread is measured, not any threads it starts.
+ *
+ * <h3>Deadlocks</h3>
+ * Concurrent tests that deadlock would otherwise hang <code>run()</code>
+ * forever.  These system properties turn on a monitor for them:
+ * <ul>
+ *   <li><code>testy.detectDeadlocks</code> &mdash; if <code>true</code>,
+ *	 fail a test when threads it started, or its own thread, are 
+ *	 deadlocked.
+ *   <li><code>testy.stuckTimeout</code> &mdash; fail a test when its
+ *	 thread, and the threads it started, have used no CPU time for 
+ *	 this many milliseconds.  This is off unless it's set.  A test 
+ *	 that sleeps, or waits for I/O, for that long counts as stuck, 
+ *	 so the timeout should be longer than any test needs to wait.
+ * </ul>
+ * The monitor samples every <code>testy.monitorInterval</code> 
+ * milliseconds, as above.  When it finds a problem, the stacks of the 
+ * threads involved are put in the test's failure message, and the run
+ * moves on to the next test.
+ *
+ * <h3>Flaky Tests</h3>
+ * A test that only fails some of the time can be found by re-running the 
+ * tests that fail.  This is controlled by system properties:
+ * <ul>
+ *   <li><code>testy.reruns</code> &mdash; the number of times to re-run
+ *	 each failed test.
+ *   <li><code>testy.parallelism</code> &mdash; the number of failed tests
+ *	 to re-run at once.  If it isn't set, they're re-run one at a time,
+ *	 since tests that ran one after the other often share state, and
+ *	 re-running them at once could make them fail.  This is also the
+ *	 default size of a {@link FixturePool}, which is otherwise the 
+ *	 number of processors.
+ *   <li><code>testy.flakyHistory</code> &mdash; a file in which to record
+ *	 the tests that were found to be flaky.
+ *   <li><code>testy.quarantine</code> &mdash; if <code>true</code>,
+ *	 a test that is recorded as flaky in the history doesn't count as
+ *	 failed, even if it fails every time.
+ * </ul>
+ * A failed test that passes at least once when re-run is reported as 
+ * flaky, along with its pass rate, and doesn't count as failed.  In the
+ * history, a test is identified by its name.  A test without a name is
+ * identified by the number of the call to <code>run()</code> and its
+ * position, like <code>#2.5</code>.
+ *
+ * <h3>Asynchronous Tests</h3>
+ * A test of asynchronous code can be an {@link AsyncTestRunnable}, which
+ * returns a <code>CompletionStage</code> instead of waiting for the work 
+ * to finish.  These are run with 
+ * {@link #runAsync(String[], AsyncTestRunnable...)}, which starts them
+ * one after the other without waiting, so thousands can be in flight at
+ * once without tying up a thread each.  A test fails if its stage 
+ * completes exceptionally.  These system properties control them:
+ * <ul>
+ *   <li><code>testy.asyncLimit</code> &mdash; the most tests that can be
+ *	 in flight at once.  When there are this many, starting the next 
+ *	 test waits until one finishes.  The default is 1000.
+ *   <li><code>testy.asyncTimeout</code> &mdash; the time a test has to
+ *	 finish, in milliseconds.  A test that takes longer fails, and its
+ *	 stage is cancelled if it can be.  By default there's no limit.
+ * </ul>
+ * Failures are reported once all of the tests have finished.  The
+ * resource limits, re-runs and test impact described here only apply to
+ * {@link #run(String[], TestRunnable...)}.
+ *
+ * <h3>Test Impact</h3>
+ * In a big project, most changes only affect a few tests.  Testy can 
+ * record which classes each named test uses, and then only run the tests
+ * that use a class that has changed since.  This needs the agent in
+ * <code>testy.jar</code>, which puts probes into the classes as they're
+ * loaded, and a file to record what the tests used in, viz:
+ * <pre>
+ *
+ *     java -javaagent:testy.jar -Dtesty.impact=impact.properties ...
+ * </pre>
+ * The first run runs everything.  After that, a test is run if it's new,
+ * or if one of the classes it used doesn't have the same class file any
+ * more.  Tests without a name are always run.  A class only counts as
+ * used if one of its methods or constructors is called, so a test that
+ * only reads a constant from a class won't be run again when it changes.
+ * See {@link Agent}.  The same probes are used to measure
+ * {@link Coverage}.
+ *
+ * <h3>Startup Time</h3>
+ * A short run of tests can spend much of its time starting the JVM, and
+ * loading classes.  If the <code>testy.startupTime</code> system property
+ * is <code>true</code>, the time from when the JVM started to when the
+ * first call to <code>run()</code> began is printed, so this can be 
+ * measured.  It can also be set to the time the JVM was launched, in 
+ * milliseconds since 1970, to include the time before the JVM notes that
+ * it has started.  See <code>build/cds.sh</code> for a way to make it 
+ * shorter.
+ *
+ * <h3>Snapshots</h3>
+ * {@link Assert#assertMatchesSnapshot(String, String, Object)} compares a
+ * value with a copy saved by an earlier run.  The copies are kept in the 
+ * directory given by the <code>testy.snapshotDir</code> system property,
+ * or <code>snapshots</code> by default, one file for each snapshot.  A
+ * new snapshot is saved the first time it's used.  When a change to the
+ * output is intended, run with <code>-Dtesty.updateSnapshots=true</code>,
+ * viz:
+ * <pre>
+ *
+ *     java -Dtesty.updateSnapshots=true ...
+ * </pre>
+ * This rewrites the snapshots that changed.  With 
+ * <code>-Dtesty.updateSnapshots=prune</code>, it also deletes the ones
+ * that weren't used.  That's only done if every test was run, and passed,
+ * since otherwise a snapshot might not have been used just because its
+ * test didn't get that far.  Only prune when the directory isn't shared
+ * with other programs' tests, since it can't know about their snapshots.
+ * Be sure to look at what changed before committing the snapshot files.
+ *
  * <h3>Kotlin Note</h3>
  * Due to bug
  * <a target="_new" href="https://youtrack.jetbrains.com/issue/KT-14233">KT-14233</a>,
@@ -74,6 +220,9 @@ import java.util.Collection;
  *
  */
 public final class Testy {
+
+    private static final AtomicInteger runs = new AtomicInteger();
+
     private Testy() {
     }
 
@@ -89,26 +238,20 @@ public final class Testy {
      * @see Assert
      */
     public static int run (TestRunnable... tests) {
-	int failed = 0;
-	int passed = 0;
-	for (int i = 0; i < tests.length; i++) {
-	    try {
-		tests[i].run();
-		passed++;
-	    } catch (Throwable t) {
-		System.err.println("Test failed:");
-		t.printStackTrace();
-		System.err.println();
-		failed++;
-	    }
-	}
-	System.out.println("" + tests.length + " total tests:");
-	System.out.println("    " + failed + " failed.");
-	System.out.println("    " + passed + " passed.");
-	if (GradingSupport.ENABLED) {
-	    GradingSupport.fromTestyRun(tests, passed, failed);
+	return run((String[]) null, tests);
+    }
+
+    //
+    // Run one test on the current thread, and return the exception that
+    // failed it, or null if it passed.
+    //
+    static Throwable runTest(TestRunnable test) {
+	try {
+	    test.run();
+	    return null;
+	} catch (Throwable t) {
+	    return t;
 	}
-	return failed;
     }
 
     /**
@@ -128,5 +271,418 @@ public final class Testy {
     public static int run (Collection<TestRunnable> tests) {
 	return run(tests.toArray(new TestRunnable[tests.size()]));
     }
-}
 
+    /**
+     * Run the tests selected by the given command-line arguments, and 
+     * report which ones fail.  Arguments of the form
+     * <code>--include=</code><i>patterns</i> and 
+     * <code>--exclude=</code><i>patterns</i> select tests by name, as
+     * described under "Selecting Tests" above.  Other arguments are 
+     * ignored, so a program can just pass along the arguments given to
+     * its <code>main()</code>.
+     *
+     * @param args	The command-line arguments
+     * @param tests	The tests to run
+     *
+     * @return the number of failed tests.
+     * @see #test(String, TestRunnable)
+     */
+    public static int run (String[] args, TestRunnable... tests) {
+	int failed = 0;
+	int passed = 0;
+	int skipped = 0;
+	int exceeded = 0;
+	int runNumber = runs.incrementAndGet();
+	if (runNumber == 1) {
+	    reportStartupTime();
+	}
+	Snapshots.runStarted();
+	BatchGrader.Result grading = BatchGrader.current();
+	TestFilter filter = TestFilter.create(args);
+	Watchdog watchdog = Watchdog.fromProperties();
+	Flaky flaky = Flaky.fromProperties();
+	Impact impact = Impact.fromProperties();
+	boolean perTest = Coverage.isPerTest();
+	Suite.Tracker suites = Suite.Tracker.create(tests);
+	if (suites != null) {
+	    tests = suites.leaves;
+	}
+	Throwable[] failures = new Throwable[tests.length];
+	long[] durations = new long[tests.length];
+	String[] keys = new String[tests.length];
+	boolean[] selected = new boolean[tests.length];
+	for (int i = 0; i < tests.length; i++) {
+	    String name = tests[i].getName();
+	    keys[i] = (name == null) ? ("#" + runNumber + "." + i) : name;
+	    selected[i] = (filter == null || filter.accepts(name))
+	    		  && (impact == null || impact.isAffected(name));
+	    if (!selected[i]) {
+		skipped++;
+	    } else if (suites != null) {
+		suites.expect(i);
+	    }
+	}
+	try {
+	    for (int i = 0; i < tests.length; i++) {
+		if (!selected[i]) {
+		    continue;
+		}
+		if (suites != null) {
+		    suites.start(i);
+		}
+		if (impact != null || perTest) {
+		    Probes.reset();
+		}
+		Throwable failure = runSelected(tests, i, watchdog, durations);
+		if (perTest) {
+		    Coverage.recordTest(keys[i]);
+		}
+		if (impact != null) {
+		    impact.finish(tests[i].getName(), failure == null);
+		}
+		failures[i] = failure;
+		if (failure == null) {
+		    passed++;
+		} else {
+		    failed++;
+		    if (failure instanceof ResourceExceeded) {
+			exceeded++;
+		    }
+		}
+		// A test that failed is graded once we know if it's flaky
+		if (failure == null || flaky == null) {
+		    if (GradingSupport.ENABLED) {
+			GradingSupport.fromTestyTest(tests, i, durations[i],
+						     failure);
+		    }
+		    if (grading != null) {
+			grading.testDone(tests[i].getName(), i, durations[i],
+					 failure);
+		    }
+		    if (suites != null) {
+			suites.finish(i);
+		    }
+		}
+	    }
+	    if (flaky != null && failed > 0) {
+		Throwable[] first = failures.clone();
+		flaky.rerun(tests, keys, failures, watchdog);
+		failed = 0;
+		exceeded = 0;
+		for (int i = 0; i < tests.length; i++) {
+		    if (first[i] == null) {
+			continue;
+		    }
+		    if (failures[i] != null) {
+			failed++;
+			if (failures[i] instanceof ResourceExceeded) {
+			    exceeded++;
+			}
+		    }
+		    if (GradingSupport.ENABLED) {
+			GradingSupport.fromTestyTest(tests, i, durations[i],
+						     failures[i]);
+		    }
+		    if (grading != null) {
+			grading.testDone(tests[i].getName(), i, durations[i],
+					 failures[i]);
+		    }
+		}
+	    }
+	} finally {
+	    if (suites != null) {
+		suites.finishAll();
+	    }
+	    if (impact != null) {
+		impact.save();
+	    }
+	}
+	Snapshots.runFinished(failed == 0 && skipped == 0);
+	System.out.println("" + tests.length + " total tests:");
+	System.out.println("    " + failed + " failed.");
+	if (exceeded > 0) {
+	    System.out.println("        (" + exceeded 
+	    		       + " exceeded resource limits.)");
+	}
+	if (flaky != null) {
+	    System.out.println("    " + flaky.getFlaky() + " flaky.");
+	    if (flaky.getQuarantined() > 0) {
+		System.out.println("    " + flaky.getQuarantined() 
+				   + " quarantined.");
+	    }
+	}
+	System.out.println("    " + passed + " passed.");
+	if (filter != null || impact != null) {
+	    System.out.println("    " + skipped + " skipped.");
+	}
+	if (GradingSupport.ENABLED) {
+	    GradingSupport.fromTestyRun(tests, passed, failed);
+	}
+	if (grading != null) {
+	    grading.add(passed, failed);
+	}
+	return failed;
+    }
+
+    /**
+     * Run the tests selected by the given command-line arguments, and 
+     * report which ones fail.  This is the same as
+     * {@link #run(String[], TestRunnable...)}, but takes a list.
+     *
+     * @param args	The command-line arguments
+     * @param tests	The tests to run
+     *
+     * @return the number of failed tests.
+     */
+    public static int run (String[] args, Collection<TestRunnable> tests) {
+	return run(args, tests.toArray(new TestRunnable[tests.size()]));
+    }
+
+    /**
+     * Run the given asynchronous tests, and report which ones fail.  
+     * Many tests can be in flight at once, as described under 
+     * "Asynchronous Tests" above.
+     *
+     * @param tests	The tests to run
+     *
+     * @return the number of failed tests.
+     */
+    public static int runAsync (AsyncTestRunnable... tests) {
+	return runAsync((String[]) null, tests);
+    }
+
+    /**
+     * Run the asynchronous tests selected by the given command-line
+     * arguments, and report which ones fail.  Tests are selected as in
+     * {@link #run(String[], TestRunnable...)}.
+     *
+     * @param args	The command-line arguments
+     * @param tests	The tests to run
+     *
+     * @return the number of failed tests.
+     * @see #asyncTest(String, AsyncTestRunnable)
+     */
+    public static int runAsync (String[] args, AsyncTestRunnable... tests) {
+	return AsyncRunner.run(args, tests);
+    }
+
+    /**
+     * Run the asynchronous tests selected by the given command-line
+     * arguments, and report which ones fail.  This is the same as
+     * {@link #runAsync(String[], AsyncTestRunnable...)}, but takes a list.
+     *
+     * @param args	The command-line arguments
+     * @param tests	The tests to run
+     *
+     * @return the number of failed tests.
+     */
+    public static int runAsync (String[] args, 
+    				Collection<AsyncTestRunnable> tests) 
+    {
+	return runAsync(args, 
+			tests.toArray(new AsyncTestRunnable[tests.size()]));
+    }
+
+    /**
+     * Give a test a name.  The name is used when the test is reported,
+     * and to select tests to run.  Names can be organized like file
+     * paths, with a "/" between the parts, viz:
+     * <pre>
+     *
+     *     Testy.run(args,
+     *          Testy.test("parser/small-input", () -&gt; testSmall()),
+     *          Testy.test("parser/large-input", () -&gt; testLarge())
+     *     );
+     * </pre>
+     *
+     * @param name	The name of the test
+     * @param test	The test
+     *
+     * @return a test that runs <code>test</code>, and has the given name
+     */
+    public static TestRunnable test(String name, TestRunnable test) {
+	Objects.requireNonNull(name);
+	Objects.requireNonNull(test);
+	return new TestRunnable() {
+	    @Override
+	    public void run() throws Throwable {
+		test.run();
+	    }
+	    @Override
+	    public String getName() {
+		return name;
+	    }
+	    @Override
+	    public String toString() {
+		return name;
+	    }
+	};
+    }
+
+    /**
+     * Give an asynchronous test a name.  This is the same as
+     * {@link #test(String, TestRunnable)}, for tests that are run with
+     * {@link #runAsync(String[], AsyncTestRunnable...)}.
+     *
+     * @param name	The name of the test
+     * @param test	The test
+     *
+     * @return a test that starts <code>test</code>, and has the given name
+     */
+    public static AsyncTestRunnable asyncTest(String name, 
+    					      AsyncTestRunnable test) 
+    {
+	Objects.requireNonNull(name);
+	Objects.requireNonNull(test);
+	return new AsyncTestRunnable() {
+	    @Override
+	    public CompletionStage<?> start() throws Throwable {
+		return test.start();
+	    }
+	    @Override
+	    public String getName() {
+		return name;
+	    }
+	    @Override
+	    public String toString() {
+		return name;
+	    }
+	};
+    }
+
+    /**
+     * Make a new, empty suite of tests.  Tests, and other suites, can be
+     * added to it, along with fixtures that its tests share.  A suite is
+     * run by passing it to <code>run()</code>, like any other test.
+     *
+     * @param name	The name of the suite
+     *
+     * @return the new suite
+     * @see Suite
+     */
+    public static Suite suite(String name) {
+	return new Suite(Objects.requireNonNull(name));
+    }
+
+    /**
+     * Run a concurrency stress test.  Each actor is given a thread of its
+     * own, and on each iteration the actors are released together, so that
+     * they race against each other.  The values they return form an 
+     * outcome tuple, and the number of times each tuple is seen is 
+     * tallied.  When all iterations are done, the arbiter classifies each
+     * outcome that was seen.  For example, this checks that two volatile
+     * fields can't both be seen as zero:
+     * <pre>
+     *
+     *     Testy.stress(
+     *         new StressActor[] {
+     *             () -&gt; { x = 1; return y; },
+     *             () -&gt; { y = 1; return x; }
+     *         },
+     *         1000000,
+     *         new StressArbiter() {
+     *             public Outcome classify(int[] r) {
+     *                 if (r[0] == 0 &amp;&amp; r[1] == 0) {
+     *                     return Outcome.FORBIDDEN;
+     *                 }
+     *                 return Outcome.ACCEPTABLE;
+     *             }
+     *             public void reset() {
+     *                 x = 0;
+     *                 y = 0;
+     *             }
+     *         }
+     *     );
+     * </pre>
+     * This is meant to be called from within a test.  The tally is printed
+     * if any interesting outcomes were seen.
+     *
+     * @param actors	The actors to race against each other
+     * @param iterations	The number of times to race them
+     * @param arbiter	Resets the state between iterations, and 
+     *			classifies the outcomes
+     *
+     * @throws TestFailed if a forbidden outcome was seen, or an actor 
+     *			  threw an exception
+     * @see StressArbiter.Outcome
+     */
+    public static void stress(StressActor[] actors, int iterations, 
+    			      StressArbiter arbiter) 
+    {
+	Stress.run(actors, iterations, arbiter);
+    }
+
+    //
+    // If testy.startupTime is set, print how long it's been since the JVM
+    // started.  The clock is read first, so that loading what's needed to
+    // ask the JVM when it started isn't counted.  The property can also 
+    // be the time the JVM was launched, in milliseconds since 1970, as 
+    // build/cds.sh does.
+    //
+    private static void reportStartupTime() {
+	long now = System.currentTimeMillis();
+	String value = System.getProperty("testy.startupTime");
+	long start;
+	if (value == null || "false".equalsIgnoreCase(value)) {
+	    return;
+	} else if ("true".equalsIgnoreCase(value)) {
+	    start = ManagementFactory.getRuntimeMXBean().getStartTime();
+	} else {
+	    try {
+		start = Long.parseLong(value);
+	    } catch (NumberFormatException ex) {
+		System.err.println("testy.startupTime should be true, or a "
+				   + "time in milliseconds, not " + value);
+		return;
+	    }
+	}
+	System.err.println("Time to first test:  " + (now - start)
+			   + " ms after the JVM started.");
+    }
+
+    //
+    // Run tests[i], report it if it fails, and record how long it took in
+    // durations[i].  Returns the exception that failed it, or null if it 
+    // passed.
+    //
+    private static Throwable runSelected(TestRunnable[] tests, int i,
+    					 Watchdog watchdog, long[] durations) 
+    {
+	long start = System.nanoTime();
+	Throwable failure;
+	if (watchdog == null) {
+	    failure = runTest(tests[i]);
+	} else {
+	    failure = watchdog.run(tests[i]);
+	}
+	durations[i] = System.nanoTime() - start;
+	if (failure != null) {
+	    reportFailure(tests[i].getName(), failure);
+	}
+	return failure;
+    }
+
+    static void reportFailure(String name, Throwable failure) {
+	if (name == null) {
+	    System.err.println("Test failed:");
+	} else {
+	    System.err.println("Test failed:  " + name);
+	}
+	failure.printStackTrace();
+	System.err.println();
+    }
+
+    //
+    // The number of tests to run at once, from the testy.parallelism 
+    // system property.
+    //
+    static int parallelism() {
+	int parallelism = Integer.getInteger("testy.parallelism", 
+			    Runtime.getRuntime().availableProcessors());
+	if (parallelism <= 0) {
+	    throw new IllegalArgumentException("testy.parallelism:  " 
+	    				       + parallelism);
+	}
+	return parallelism;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A clock that only moves when it's told to.  Code that gets the time
+ * from a <code>java.time.Clock</code>, and waits with a 
+ * <code>ScheduledExecutorService</code>, can be given one of these and an
+ * executor from {@link #newScheduledExecutor()}.  Then a test can advance
+ * the time by half an hour, and see the cache entry expire, without 
+ * waiting half an hour, viz:
+ * <pre>
+ *
+ *     VirtualClock clock = new VirtualClock();
+ *     Cache cache = new Cache(clock, clock.newScheduledExecutor());
+ *     cache.put("key", "value", Duration.ofMinutes(30));
+ *     clock.advance(Duration.ofMinutes(29));
+ *     assertEquals("value", cache.get("key"));
+ *     clock.advance(Duration.ofMinutes(1));
+ *     assertNull(cache.get("key"));
+ * </pre>
+ * Scheduled tasks are run by the thread that calls 
+ * {@link #advance(Duration)}, in the order of the times they're 
+ * scheduled for, with the clock set to each task's time while it runs.
+ * Tasks scheduled for the same time run in the order they were scheduled.
+ * Nothing runs between calls to <code>advance()</code>, even tasks with no
+ * delay, so the order of events in a test doesn't depend on thread
+ * scheduling.  <code>advance(Duration.ZERO)</code> runs the tasks that
+ * are due now.
+ * <p>
+ * The clock's time is kept in nanoseconds.  A clock from 
+ * {@link #withZone(ZoneId)} shares its time with the clock it came from.
+ */
+public final class VirtualClock extends Clock {
+
+    //
+    // The time, and the tasks waiting for it.  This is shared by the 
+    // clocks from withZone().
+    //
+    static final class Timeline {
+	final PriorityQueue<VirtualScheduler.Task<?>> tasks 
+	    = new PriorityQueue<>();
+	long now;		// nanoseconds since the epoch
+	long sequence;		// to keep tasks for the same time in order
+	boolean advancing;
+    }
+
+    private final Timeline timeline;
+    private final ZoneId zone;
+
+    /**
+     * Make a clock that starts at the epoch, 1970-01-01T00:00:00Z, in UTC.
+     */
+    public VirtualClock() {
+	this(Instant.EPOCH, ZoneOffset.UTC);
+    }
+
+    /**
+     * Make a clock that starts at the given time.
+     *
+     * @param start	The time the clock starts at
+     * @param zone	The clock's time zone
+     */
+    public VirtualClock(Instant start, ZoneId zone) {
+	this(new Timeline(), zone);
+	timeline.now = Math.addExact(
+		Math.multiplyExact(start.getEpochSecond(), 1000000000L),
+		start.getNano());
+    }
+
+    private VirtualClock(Timeline timeline, ZoneId zone) {
+	if (zone == null) {
+	    throw new NullPointerException("zone");
+	}
+	this.timeline = timeline;
+	this.zone = zone;
+    }
+
+    @Override
+    public ZoneId getZone() {
+	return zone;
+    }
+
+    /**
+     * Give a clock with a different time zone, that shares this clock's
+     * time and scheduled tasks.
+     *
+     * @param zone	The time zone
+     *
+     * @return the clock
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+	return zone.equals(this.zone) ? this : new VirtualClock(timeline, zone);
+    }
+
+    @Override
+    public Instant instant() {
+	long now = nanos();
+	return Instant.ofEpochSecond(Math.floorDiv(now, 1000000000L),
+				     Math.floorMod(now, 1000000000L));
+    }
+
+    @Override
+    public long millis() {
+	return Math.floorDiv(nanos(), 1000000L);
+    }
+
+    /**
+     * Give the time in nanoseconds, for code that would otherwise use
+     * <code>System.nanoTime()</code>.  This counts from the epoch, not 
+     * from an arbitrary origin.
+     *
+     * @return the number of nanoseconds since the epoch
+     */
+    public long nanoTime() {
+	return nanos();
+    }
+
+    private long nanos() {
+	synchronized(timeline) {
+	    return timeline.now;
+	}
+    }
+
+    /**
+     * Move the clock forward, running the tasks that become due, in 
+     * order.  A task can schedule more tasks, and they're run too if
+     * they become due.
+     *
+     * @param amount	How far to move the clock, which can't be negative
+     *
+     * @throws IllegalStateException if called from a task that's being run
+     *				     by <code>advance()</code>
+     */
+    public void advance(Duration amount) {
+	if (amount.isNegative()) {
+	    throw new IllegalArgumentException("Negative amount:  " + amount);
+	}
+	long target;
+	synchronized(timeline) {
+	    if (timeline.advancing) {
+		throw new IllegalStateException("advance() called from a task");
+	    }
+	    timeline.advancing = true;
+	    target = Math.addExact(timeline.now, amount.toNanos());
+	}
+	try {
+	    for (;;) {
+		VirtualScheduler.Task<?> task;
+		synchronized(timeline) {
+		    task = timeline.tasks.peek();
+		    if (task == null || task.time > target) {
+			timeline.now = target;
+			return;
+		    }
+		    timeline.tasks.poll();
+		    if (task.time > timeline.now) {
+			timeline.now = task.time;
+		    }
+		}
+		task.run();
+	    }
+	} finally {
+	    synchronized(timeline) {
+		timeline.advancing = false;
+	    }
+	}
+    }
+
+    /**
+     * Make an executor that runs tasks in this clock's time.  Its tasks 
+     * are run by {@link #advance(Duration)}.  Shutting it down stops new
+     * tasks from being accepted, and stops periodic tasks from being 
+     * rescheduled, but tasks that are already scheduled still run.  
+     * Since it has no threads of its own, 
+     * <code>awaitTermination()</code> doesn't wait.
+     *
+     * @return the executor
+     */
+    public ScheduledExecutorService newScheduledExecutor() {
+	return new VirtualScheduler(timeline);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+	return other instanceof VirtualClock 
+	    && ((VirtualClock) other).timeline == timeline
+	    && ((VirtualClock) other).zone.equals(zone);
+    }
+
+    @Override
+    public int hashCode() {
+	return System.identityHashCode(timeline) ^ zone.hashCode();
+    }
+
+    @Override
+    public String toString() {
+	return "VirtualClock[" + instant() + "," + zone + "]";
+    }
+}
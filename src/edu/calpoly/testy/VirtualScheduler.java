@@ -0,0 +1,244 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>ScheduledExecutorService</code> that runs in virtual time.  See
+ * {@link VirtualClock#newScheduledExecutor()}.
+ */
+final class VirtualScheduler extends AbstractExecutorService
+			     implements ScheduledExecutorService 
+{
+    private final VirtualClock.Timeline timeline;
+    private boolean shutdown;	// guarded by timeline
+
+    VirtualScheduler(VirtualClock.Timeline timeline) {
+	this.timeline = timeline;
+    }
+
+    //
+    // A scheduled task.  period is positive for a fixed rate, negative for
+    // a fixed delay, and zero if the task only runs once.
+    //
+    final class Task<V> extends FutureTask<V> 
+		  implements RunnableScheduledFuture<V> 
+    {
+	long time;
+	private long sequence;
+	private final long period;
+
+	Task(Callable<V> callable, long time, long period) {
+	    super(callable);
+	    this.time = time;
+	    this.period = period;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+	    synchronized(timeline) {
+		return unit.convert(time - timeline.now, TimeUnit.NANOSECONDS);
+	    }
+	}
+
+	@Override
+	public int compareTo(Delayed other) {
+	    if (other == this) {
+		return 0;
+	    } else if (other instanceof Task) {
+		Task<?> t = (Task<?>) other;
+		int c = Long.compare(time, t.time);
+		return (c != 0) ? c : Long.compare(sequence, t.sequence);
+	    }
+	    return Long.compare(getDelay(TimeUnit.NANOSECONDS), 
+				other.getDelay(TimeUnit.NANOSECONDS));
+	}
+
+	@Override
+	public boolean isPeriodic() {
+	    return period != 0;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+	    boolean cancelled = super.cancel(mayInterruptIfRunning);
+	    if (cancelled) {
+		synchronized(timeline) {
+		    timeline.tasks.remove(this);
+		}
+	    }
+	    return cancelled;
+	}
+
+	@Override
+	public void run() {
+	    if (!isPeriodic()) {
+		super.run();
+	    } else if (runAndReset()) {
+		synchronized(timeline) {
+		    if (!shutdown) {
+			time = (period > 0) ? time + period 
+					    : timeline.now - period;
+			enqueue(this);
+		    }
+		}
+	    }
+	}
+
+	VirtualScheduler owner() {
+	    return VirtualScheduler.this;
+	}
+    }
+
+    //
+    // Must be called with the timeline locked.
+    //
+    private void enqueue(Task<?> task) {
+	task.sequence = timeline.sequence++;
+	timeline.tasks.add(task);
+    }
+
+    private <V> Task<V> schedule(Callable<V> callable, long delay, 
+    				 long period, TimeUnit unit) 
+    {
+	if (callable == null || unit == null) {
+	    throw new NullPointerException();
+	}
+	synchronized(timeline) {
+	    if (shutdown) {
+		throw new RejectedExecutionException("Executor is shut down");
+	    }
+	    long d = Math.max(0, unit.toNanos(delay));
+	    Task<V> task = new Task<>(callable, timeline.now + d, 
+	    			      unit.toNanos(period));
+	    enqueue(task);
+	    return task;
+	}
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, 
+    				       TimeUnit unit) 
+    {
+	return schedule(Executors.callable(command), delay, 0, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, 
+    					   TimeUnit unit) 
+    {
+	return schedule(callable, delay, 0, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, 
+    		long initialDelay, long period, TimeUnit unit) 
+    {
+	if (period <= 0) {
+	    throw new IllegalArgumentException("period:  " + period);
+	}
+	return schedule(Executors.callable(command), initialDelay, period, 
+			unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, 
+    		long initialDelay, long delay, TimeUnit unit) 
+    {
+	if (delay <= 0) {
+	    throw new IllegalArgumentException("delay:  " + delay);
+	}
+	return schedule(Executors.callable(command), initialDelay, -delay, 
+			unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+	schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+	synchronized(timeline) {
+	    shutdown = true;
+	}
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+	List<Runnable> result = new ArrayList<>();
+	synchronized(timeline) {
+	    shutdown = true;
+	    Iterator<Task<?>> it = timeline.tasks.iterator();
+	    while (it.hasNext()) {
+		Task<?> t = it.next();
+		if (t.owner() == this) {
+		    it.remove();
+		    result.add(t);
+		}
+	    }
+	}
+	return result;
+    }
+
+    @Override
+    public boolean isShutdown() {
+	synchronized(timeline) {
+	    return shutdown;
+	}
+    }
+
+    @Override
+    public boolean isTerminated() {
+	synchronized(timeline) {
+	    if (!shutdown) {
+		return false;
+	    }
+	    for (Task<?> t : timeline.tasks) {
+		if (t.owner() == this) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+	return isTerminated();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode:  keeps a JVM running, and re-runs the tests every time a 
+ * source file changes.  The sources are compiled in memory, like
+ * {@link Launcher} does.  After that, only the files that changed are 
+ * recompiled.  The tests' main class is then run in a fresh
+ * class loader, so it starts out with clean static state, but the JIT 
+ * stays warm.  Run it like this:
+ * <pre>
+ *
+ *     java -cp testy.jar edu.calpoly.testy.Watch -sourcepath src \
+ *          MainClass [args...]
+ * </pre>
+ * The <code>-sourcepath</code> is a list of source directories, separated
+ * by the platform's path separator, which are watched for changes.  Any 
+ * arguments after the main class are passed to its <code>main()</code>
+ * every time, so <code>--include=</code> can be used to watch just some of
+ * the tests.  Every change re-runs the whole main class;  only running the
+ * suites that a change affects isn't supported.  This needs a JDK, not 
+ * just a JRE.  Since only the changed files are recompiled, changing a 
+ * constant or a signature that other classes depend on may need a 
+ * restart.  When a source file is deleted or renamed, the classes that 
+ * were compiled from it are dropped.
+ */
+public final class Watch {
+
+    private final List<Path> roots;
+    private final String mainClass;
+    private final String[] args;
+    private final String sourcepath;
+    private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+    private final Map<String, URI> origins = new ConcurrentHashMap<>();
+    private final Set<Path> failed = new LinkedHashSet<>();
+
+    private Watch(List<Path> roots, String mainClass, String[] args) {
+	this.roots = roots;
+	this.mainClass = mainClass;
+	this.args = args;
+	StringBuilder sb = new StringBuilder();
+	for (Path root : roots) {
+	    if (sb.length() > 0) {
+		sb.append(File.pathSeparator);
+	    }
+	    sb.append(root);
+	}
+	this.sourcepath = sb.toString();
+    }
+
+    /**
+     * Watch the given sources, and run the tests whenever they change.
+     * This doesn't return.
+     *
+     * @param args	<code>-sourcepath dirs MainClass [args...]</code>
+     * @throws Exception if there's a problem watching the sources
+     */
+    public static void main(String[] args) throws Exception {
+	if (args.length < 3 || !"-sourcepath".equals(args[0])) {
+	    System.err.println("Usage:  java edu.calpoly.testy.Watch "
+			       + "-sourcepath dirs MainClass [args...]");
+	    System.exit(1);
+	}
+	List<Path> roots = new ArrayList<>();
+	for (String dir : args[1].split(File.pathSeparator)) {
+	    roots.add(Paths.get(dir).toAbsolutePath().normalize());
+	}
+	new Watch(roots, args[2], Arrays.copyOfRange(args, 3, args.length))
+	    .watch();
+    }
+
+    private void watch() throws IOException, InterruptedException {
+	WatchService watcher = roots.get(0).getFileSystem().newWatchService();
+	Set<Path> all = new LinkedHashSet<>();
+	for (Path root : roots) {
+	    register(watcher, root, all);
+	}
+	if (compile(all)) {
+	    runTests();
+	}
+	System.out.println("Watching for changes...");
+	for (;;) {
+	    Set<Path> changed = new LinkedHashSet<>();
+	    Set<Path> deleted = new LinkedHashSet<>();
+	    WatchKey key = watcher.take();
+	    // Editors often write a file in several steps, so wait for
+	    // things to settle down.
+	    while (key != null) {
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> ev : key.pollEvents()) {
+		    if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+			changed.addAll(all);
+			continue;
+		    }
+		    Path p = dir.resolve((Path) ev.context());
+		    if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+			// A file, or a whole directory, that was deleted or
+			// renamed.
+			deleted.add(p);
+		    } else if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE
+		        && Files.isDirectory(p)) 
+		    {
+			register(watcher, p, changed);
+		    } else if (isSource(p) && Files.exists(p)) {
+			changed.add(p);
+		    }
+		}
+		key.reset();
+		key = watcher.poll(100, TimeUnit.MILLISECONDS);
+	    }
+	    boolean dropped = false;
+	    for (Path d : deleted) {
+		all.removeIf(f -> f.startsWith(d));
+		failed.removeIf(f -> f.startsWith(d));
+		dropped |= evict(d);
+	    }
+	    changed.removeIf(f -> !Files.exists(f));
+	    if (!changed.isEmpty()) {
+		all.addAll(changed);
+		if (compile(changed)) {
+		    runTests();
+		}
+	    } else if (dropped) {
+		runTests();
+	    } else {
+		// Nothing we compile changed, e.g. an editor's backup file
+		continue;
+	    }
+	    System.out.println("Watching for changes...");
+	}
+    }
+
+    //
+    // Watch the given directory and its subdirectories, and add the sources
+    // found in them to the given set.
+    //
+    private static void register(final WatchService watcher, Path dir, 
+    				 final Set<Path> sources) 
+	    throws IOException
+    {
+	Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult preVisitDirectory(Path d, 
+	    					     BasicFileAttributes a)
+		    throws IOException
+	    {
+		d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+			   StandardWatchEventKinds.ENTRY_MODIFY,
+			   StandardWatchEventKinds.ENTRY_DELETE);
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFile(Path f, BasicFileAttributes a) {
+		if (isSource(f)) {
+		    sources.add(f);
+		}
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+    }
+
+    private static boolean isSource(Path p) {
+	return p.getFileName().toString().endsWith(".java");
+    }
+
+    //
+    // Drop the classes compiled from the given source file, or from the
+    // sources under the given directory.  Returns true if there were any.
+    //
+    private boolean evict(Path source) {
+	boolean any = false;
+	for (Map.Entry<String, URI> e : origins.entrySet()) {
+	    if (Paths.get(e.getValue()).startsWith(source)) {
+		classes.remove(e.getKey());
+		origins.remove(e.getKey());
+		any = true;
+	    }
+	}
+	return any;
+    }
+
+    //
+    // Compile the given sources, replacing their classes in our map.  The
+    // other sources are only read to resolve names, so they don't need to
+    // be recompiled.  Sources that failed to compile last time are tried
+    // again, since their old classes are gone.
+    //
+    private boolean compile(Set<Path> changed) {
+	Set<Path> sources = new LinkedHashSet<>(failed);
+	sources.addAll(changed);
+	List<File> files = new ArrayList<>();
+	for (Path p : sources) {
+	    files.add(p.toFile());
+	    // Classes that were taken out of the source shouldn't linger
+	    evict(p);
+	}
+	long start = System.nanoTime();
+	boolean ok;
+	try {
+	    ok = Launcher.compile(sourcepath, files, false, classes, origins);
+	} catch (IOException ex) {
+	    ex.printStackTrace();
+	    ok = false;
+	}
+	long ms = (System.nanoTime() - start) / 1000000;
+	failed.clear();
+	if (!ok) {
+	    failed.addAll(sources);
+	    System.out.println("Compilation failed.");
+	    return false;
+	}
+	System.out.println("Compiled " + sources.size() + " files in " + ms 
+			   + " ms.");
+	return true;
+    }
+
+    //
+    // Run the main class in a new class loader, with Testy itself coming
+    // from the parent.  Once the run is over, nothing refers to the loader,
+    // so the classes can be unloaded.
+    //
+    private void runTests() {
+	try {
+	    ClassLoader loader 
+		= Launcher.newLoader(classes, Watch.class.getClassLoader());
+	    Launcher.runMain(loader, mainClass, args.clone());
+	} catch (Throwable t) {
+	    t.printStackTrace();
+	}
+    }
+}
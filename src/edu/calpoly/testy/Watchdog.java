@@ -0,0 +1,325 @@
+/*
+ * Copyright © 2018, Bill Foote, Cal Poly, San Luis Obispo, CA
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the “Software”), 
+ * to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, 
+ * and/or sell copies of the Software, and to permit persons to whom the 
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included 
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS 
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL 
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.calpoly.testy;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Runs tests on a worker thread, and stops any test that goes over its
+ * CPU time or allocation budget, deadlocks, or stops making progress.  The
+ * thread that calls run() does the watching, so no extra monitor thread is
+ * needed.  See the "Resource Limits" and "Deadlocks" sections of 
+ * {@link Testy}.
+ */
+final class Watchdog {
+
+    private static final ThreadMXBean threads 
+	= ManagementFactory.getThreadMXBean();
+
+    private final long cpuLimit;	// nanoseconds, or 0
+    private final long allocLimit;	// bytes, or 0
+    private final boolean deadlocks;
+    private final long stuckTimeout;	// nanoseconds, or 0
+    private final long interval;	// milliseconds
+
+    private Watchdog(long cpuLimit, long allocLimit, boolean deadlocks,
+    		     long stuckTimeout, long interval) 
+    {
+	this.cpuLimit = cpuLimit;
+	this.allocLimit = allocLimit;
+	this.deadlocks = deadlocks;
+	this.stuckTimeout = stuckTimeout;
+	this.interval = interval;
+    }
+
+    //
+    // Create a watchdog from the testy.* system properties, or return
+    // null if nothing is to be watched.
+    //
+    static Watchdog fromProperties() {
+	long cpuLimit = Long.getLong("testy.cpuLimit", 0) * 1000000;
+	long allocLimit = Long.getLong("testy.allocLimit", 0);
+	boolean deadlocks = Boolean.getBoolean("testy.detectDeadlocks");
+	long stuckTimeout = Long.getLong("testy.stuckTimeout", 0) * 1000000;
+	long interval = Long.getLong("testy.monitorInterval", 100);
+	if (cpuLimit <= 0 && allocLimit <= 0 && !deadlocks 
+	    && stuckTimeout <= 0) 
+	{
+	    return null;
+	}
+	if (interval <= 0) {
+	    throw new IllegalArgumentException("testy.monitorInterval:  " 
+	    				       + interval);
+	}
+	if (cpuLimit > 0 || stuckTimeout > 0) {
+	    if (!threads.isThreadCpuTimeSupported()) {
+		throw new UnsupportedOperationException(
+			"Thread CPU time is not supported by this JVM");
+	    }
+	    threads.setThreadCpuTimeEnabled(true);
+	}
+	if (allocLimit > 0) {
+	    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+		throw new UnsupportedOperationException(
+			"Thread allocation is not measured by this JVM");
+	    }
+	    com.sun.management.ThreadMXBean t 
+		= (com.sun.management.ThreadMXBean) threads;
+	    if (!t.isThreadAllocatedMemorySupported()) {
+		throw new UnsupportedOperationException(
+			"Thread allocation is not measured by this JVM");
+	    }
+	    t.setThreadAllocatedMemoryEnabled(true);
+	}
+	return new Watchdog(cpuLimit, allocLimit, deadlocks, stuckTimeout,
+			    interval);
+    }
+
+    //
+    // Run the test on a new thread, and return the exception that failed 
+    // it, or null if it passed.  The worker gets a thread group of its own,
+    // which threads it starts will normally inherit.  That's how we tell 
+    // a deadlock in this test from one in a test that was abandoned 
+    // earlier, or one being run concurrently by BatchGrader.  The group is
+    // a daemon, so it goes away once its last thread does.  Before JDK 19,
+    // other groups stay in their parent until they're destroyed, so we'd
+    // leak one per test.
+    //
+    @SuppressWarnings({"deprecation", "removal"})
+    Throwable run(TestRunnable test) {
+	final Throwable[] failure = new Throwable[1];
+	ThreadGroup group = new ThreadGroup("Testy test");
+	group.setDaemon(true);
+	Thread worker = new Thread(group, () -> {
+	    failure[0] = Testy.runTest(test);
+	}, "Testy test");
+	worker.setDaemon(true);
+	worker.start();
+	long id = worker.getId();
+	long lastCpu = -1;
+	long stuckSince = System.nanoTime();
+	try {
+	    for (;;) {
+		worker.join(interval);
+		if (!worker.isAlive()) {
+		    // join() makes failure[0] visible to us
+		    return failure[0];
+		}
+		if (cpuLimit > 0) {
+		    long used = threads.getThreadCpuTime(id);
+		    if (used > cpuLimit) {
+			return exceeded(worker, "CPU time limit of " 
+					    + (cpuLimit / 1000000) + " ms");
+		    }
+		}
+		if (stuckTimeout > 0) {
+		    Thread[] members = members(group);
+		    long used = cpuTime(members);
+		    long now = System.nanoTime();
+		    if (used != lastCpu) {
+			lastCpu = used;
+			stuckSince = now;
+		    } else if (now - stuckSince >= stuckTimeout) {
+			return stuck(worker, "No progress for " 
+					     + (stuckTimeout / 1000000) 
+					     + " ms", ids(members));
+		    }
+		}
+		if (allocLimit > 0) {
+		    long used = ((com.sun.management.ThreadMXBean) threads)
+				    .getThreadAllocatedBytes(id);
+		    if (used > allocLimit) {
+			return exceeded(worker, "Allocation limit of " 
+					    + allocLimit + " bytes");
+		    }
+		}
+		if (deadlocks) {
+		    long[] ids = deadlockedIn(group);
+		    if (ids != null) {
+			return stuck(worker, "Deadlock detected", ids);
+		    }
+		}
+	    }
+	} catch (InterruptedException ex) {
+	    abort(worker);
+	    Thread.currentThread().interrupt();
+	    return ex;
+	}
+    }
+
+    //
+    // Return the IDs of the deadlocked threads that belong to the given
+    // group, or null if there aren't any.  Deadlocked threads elsewhere,
+    // e.g. in a test that was abandoned earlier, aren't this test's fault.
+    //
+    private static long[] deadlockedIn(ThreadGroup group) {
+	long[] all = threads.findDeadlockedThreads();
+	if (all == null) {
+	    return null;
+	}
+	long[] ids = ids(members(group));
+	long[] result = new long[all.length];
+	int n = 0;
+	for (long id : all) {
+	    for (long member : ids) {
+		if (member == id) {
+		    result[n++] = id;
+		    break;
+		}
+	    }
+	}
+	return (n == 0) ? null : Arrays.copyOf(result, n);
+    }
+
+    private static Thread[] members(ThreadGroup group) {
+	Thread[] members = new Thread[group.activeCount() + 16];
+	return Arrays.copyOf(members, group.enumerate(members));
+    }
+
+    private static long[] ids(Thread[] members) {
+	long[] result = new long[members.length];
+	for (int i = 0; i < members.length; i++) {
+	    result[i] = members[i].getId();
+	}
+	return result;
+    }
+
+    //
+    // The total CPU time used by the given threads, so a test that waits
+    // while threads it started do the work is still making progress.  A
+    // thread that finishes takes its time out of the total, but that 
+    // changes it, so it counts as progress too.
+    //
+    private static long cpuTime(Thread[] members) {
+	long total = 0;
+	for (Thread t : members) {
+	    long used = threads.getThreadCpuTime(t.getId());
+	    if (used > 0) {
+		total += used;
+	    }
+	}
+	return total;
+    }
+
+    //
+    // Fail a test that's not making progress, with a dump of the stacks
+    // of the threads involved.
+    //
+    private TestFailed stuck(Thread worker, String why, long[] ids) {
+	StringBuilder sb = new StringBuilder(why);
+	sb.append(":\n");
+	for (ThreadInfo info : threads.getThreadInfo(ids, true, true)) {
+	    if (info != null) {
+		sb.append('\n');
+		dump(info, sb);
+	    }
+	}
+	TestFailed result = new TestFailed(sb.toString());
+	result.setStackTrace(worker.getStackTrace());
+	abort(worker);
+	return result;
+    }
+
+    //
+    // Like ThreadInfo.toString(), but without the limit of eight frames.
+    //
+    private static void dump(ThreadInfo info, StringBuilder sb) {
+	sb.append('"').append(info.getThreadName()).append("\" Id=")
+	  .append(info.getThreadId()).append(' ')
+	  .append(info.getThreadState());
+	if (info.getLockName() != null) {
+	    sb.append(" on ").append(info.getLockName());
+	}
+	if (info.getLockOwnerName() != null) {
+	    sb.append(" owned by \"").append(info.getLockOwnerName())
+	      .append("\" Id=").append(info.getLockOwnerId());
+	}
+	sb.append('\n');
+	StackTraceElement[] stack = info.getStackTrace();
+	MonitorInfo[] monitors = info.getLockedMonitors();
+	for (int i = 0; i < stack.length; i++) {
+	    sb.append("\tat ").append(stack[i]).append('\n');
+	    if (i == 0 && info.getLockInfo() != null) {
+		sb.append("\t-  waiting on ").append(info.getLockInfo())
+		  .append('\n');
+	    }
+	    for (MonitorInfo mi : monitors) {
+		if (mi.getLockedStackDepth() == i) {
+		    sb.append("\t-  locked ").append(mi).append('\n');
+		}
+	    }
+	}
+	LockInfo[] synchronizers = info.getLockedSynchronizers();
+	if (synchronizers.length > 0) {
+	    sb.append("\tLocked synchronizers:\n");
+	    for (LockInfo li : synchronizers) {
+		sb.append("\t-  ").append(li).append('\n');
+	    }
+	}
+    }
+
+    //
+    // Stop a test that's over budget, and make an exception that shows
+    // where it was when it got stopped.
+    //
+    private ResourceExceeded exceeded(Thread worker, String limit) {
+	ResourceExceeded result = new ResourceExceeded(limit + " exceeded");
+	result.setStackTrace(worker.getStackTrace());
+	abort(worker);
+	return result;
+    }
+
+    //
+    // Try to stop a test that we've given up on.  We ask nicely first, 
+    // but code that's stuck in a loop won't notice, so we then resort to
+    // Thread.stop().  That's deprecated for good reason, but the test
+    // is being abandoned anyway.  On JDKs where stop() is no longer
+    // supported (20 and later), the daemon thread is left to run at the
+    // lowest priority, and we say so, since it may keep using a CPU for 
+    // the rest of the run.
+    //
+    @SuppressWarnings("deprecation")
+    private void abort(Thread worker) {
+	worker.interrupt();
+	try {
+	    worker.join(interval);
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+	if (worker.isAlive()) {
+	    try {
+		worker.stop();
+	    } catch (UnsupportedOperationException ex) {
+		worker.setPriority(Thread.MIN_PRIORITY);
+		System.err.println("Couldn't stop the thread of an abandoned "
+				   + "test, so it was left running:  " + ex);
+	    }
+	}
+    }
+}
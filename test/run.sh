@@ -1,13 +1,17 @@
 #!/bin/bash
 
 #
-# Compile the program:
+# Compile and run the tests in one JVM, without writing any class files.
+# Running the launcher straight from its source needs JDK 11 or later.
 #
-rm -rf out
-mkdir out
-javac -Xlint:unchecked -sourcepath src:../src -d out src/Main.java
+java -ea ../src/edu/calpoly/testy/Launcher.java -sourcepath src:../src Main
 if [ $? != 0 ] ; then
     exit 1
 fi
-
-java -cp out -ea Main
+java -ea ../src/edu/calpoly/testy/Launcher.java -sourcepath src:../src \
+	edu.calpoly.testy.AgentMain
+if [ $? != 0 ] ; then
+    exit 1
+fi
+exec java -ea ../src/edu/calpoly/testy/Launcher.java \
+	-sourcepath src:../src:../src-flow FlowMain
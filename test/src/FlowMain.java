@@ -0,0 +1,124 @@
+
+import java.time.Duration;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import edu.calpoly.testy.Testy;
+import edu.calpoly.testy.FlowVerifier;
+
+/**
+ * Tests of FlowVerifier.  These are separate from Main, since Flow needs
+ * Java 9 or later.
+ */
+public class FlowMain {
+
+    //
+    // Publishes count ints, starting at 0, on the thread that requests
+    // them.  If it's rude, it ignores the demand.
+    //
+    private static Flow.Publisher<Integer> range(int count, boolean rude) {
+	return subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+	    private int next;
+	    private boolean emitting;
+	    private long demand;
+	    private boolean cancelled;
+
+	    @Override
+	    public void request(long n) {
+		demand += n;
+		if (demand < 0) {
+		    demand = Long.MAX_VALUE;
+		}
+		if (emitting) {
+		    return;	// Don't recurse
+		}
+		emitting = true;
+		while ((demand > 0 || rude) && next < count && !cancelled) {
+		    demand--;
+		    subscriber.onNext(next++);
+		}
+		emitting = false;
+		if (next == count && !cancelled) {
+		    cancelled = true;
+		    subscriber.onComplete();
+		}
+	    }
+
+	    @Override
+	    public void cancel() {
+		cancelled = true;
+	    }
+	});
+    }
+
+    private static Flow.Publisher<Integer> failing() {
+	return subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+	    @Override
+	    public void request(long n) {
+		subscriber.onError(new IllegalStateException("boom"));
+	    }
+
+	    @Override
+	    public void cancel() {
+	    }
+	});
+    }
+
+    public static void main(String[] args) {
+	int failed = Testy.run(
+	    () -> FlowVerifier.create(range(3, false))
+		    .expectNext(0, 1, 2)
+		    .expectComplete()
+		    .verify(),
+	    () -> FlowVerifier.create(range(5000000, false), 2)
+		    .expectNext(0, 1)
+		    .thenRequest(10)
+		    .expectNextCount(10)
+		    .thenRequest(Long.MAX_VALUE)
+		    .expectNextCount(4999987)
+		    .expectNextMatches(i -> i == 4999999)
+		    .expectComplete()
+		    .verify(),
+	    () -> FlowVerifier.create(range(100, false), 5)
+		    .expectNextCount(5)
+		    .thenCancel()
+		    .verify(),
+	    () -> FlowVerifier.create(failing())
+		    .expectError(IllegalStateException.class)
+		    .verify(),
+	    () -> {
+		SubmissionPublisher<String> pub = new SubmissionPublisher<>();
+		FlowVerifier<String> v = FlowVerifier.create(pub)
+		    .expectNext("a", "b")
+		    .expectComplete();
+		new Thread(() -> {
+		    while (pub.getNumberOfSubscribers() == 0) {
+			Thread.yield();
+		    }
+		    pub.submit("a");
+		    pub.submit("b");
+		    pub.close();
+		}).start();
+		v.verify();
+	    },
+	    // These should fail
+	    () -> FlowVerifier.create(range(3, false))
+		    .expectNext(0, 2, 1)
+		    .expectComplete()
+		    .verify(),
+	    () -> FlowVerifier.create(range(10, true), 2)
+		    .expectNextCount(10)
+		    .expectComplete()
+		    .verify(),
+	    () -> FlowVerifier.create(range(3, false))
+		    .expectNextCount(3)
+		    .expectError(IllegalStateException.class)
+		    .verify(),
+	    () -> FlowVerifier.create(range(10, false), 2)
+		    .expectNextCount(3)
+		    .expectComplete()
+		    .verify(Duration.ofMillis(100))
+	);
+	System.out.println("Expected 4 failures.  Got:  " + failed);
+	System.out.println();
+    }
+}
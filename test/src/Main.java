@@ -1,7 +1,43 @@
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import edu.calpoly.testy.Testy;
+import edu.calpoly.testy.AsyncTestRunnable;
+import edu.calpoly.testy.BatchGrader;
+import edu.calpoly.testy.DeepCompare;
+import edu.calpoly.testy.TestFailed;
+import edu.calpoly.testy.TestRunnable;
+import edu.calpoly.testy.VirtualClock;
+import edu.calpoly.testy.Fixture;
+import edu.calpoly.testy.FixturePool;
+import edu.calpoly.testy.Launcher;
+import edu.calpoly.testy.Suite;
+import edu.calpoly.testy.StressActor;
+import edu.calpoly.testy.StressArbiter;
 import static edu.calpoly.testy.Assert.assertTrue;
 import static edu.calpoly.testy.Assert.assertFalse;
+import static edu.calpoly.testy.Assert.assertEventually;
+import static edu.calpoly.testy.Assert.assertContainsAll;
+import static edu.calpoly.testy.Assert.assertSameElements;
+import static edu.calpoly.testy.Assert.assertNoDuplicates;
+import static edu.calpoly.testy.Assert.assertSameElementsUnordered;
+import static edu.calpoly.testy.Assert.assertStreamsEqual;
+import static edu.calpoly.testy.Assert.assertReadersEqual;
+import static edu.calpoly.testy.Assert.assertFilesEqual;
+import static edu.calpoly.testy.Assert.assertFileMatchesHash;
+import static edu.calpoly.testy.Assert.assertMatchesSnapshot;
+import static edu.calpoly.testy.Assert.assertDeepEquals;
 import static edu.calpoly.testy.Assert.fail;
 import static edu.calpoly.testy.Assert.assertEquals;
 import static edu.calpoly.testy.Assert.assertNotEquals;
@@ -25,6 +61,257 @@ public class Main {
 	fail("Fail 1");
     }
 
+    private volatile long counter;
+    private volatile Object garbage;
+
+    public void testSpin() {
+	for (;;) {
+	    counter++;
+	}
+    }
+
+    public void testAllocate() {
+	for (;;) {
+	    garbage = new byte[1000];
+	}
+    }
+
+    public void testDeadlock() throws InterruptedException {
+	final Object a = new Object();
+	final Object b = new Object();
+	final java.util.concurrent.CountDownLatch latch 
+	    = new java.util.concurrent.CountDownLatch(2);
+	Thread other = new Thread(() -> {
+	    synchronized(b) {
+		latch.countDown();
+		awaitQuietly(latch);
+		synchronized(a) {
+		}
+	    }
+	});
+	other.setDaemon(true);
+	other.start();
+	synchronized(a) {
+	    latch.countDown();
+	    latch.await();
+	    synchronized(b) {
+	    }
+	}
+    }
+
+    //
+    // Wait while another thread uses the CPU for the given time.
+    //
+    public void testHelperBusy(long millis) throws InterruptedException {
+	Thread helper = new Thread(() -> {
+	    long end = System.nanoTime() + millis * 1000000;
+	    while (System.nanoTime() < end) {
+		counter++;
+	    }
+	});
+	helper.start();
+	helper.join();
+    }
+
+    private int flakyCount;
+
+    public void testFlaky() {
+	flakyCount++;
+	assertTrue("fails the first time", flakyCount > 1);
+    }
+
+    private int spinOnceCount;
+
+    //
+    // Spin for three seconds the first time, and pass after that.
+    //
+    public void testSpinOnce() {
+	if (spinOnceCount++ == 0) {
+	    long end = System.nanoTime() + 3000000000L;
+	    while (System.nanoTime() < end) {
+		counter++;
+	    }
+	}
+    }
+
+    //
+    // Hammer a pool from several threads, checking that no instance is
+    // ever leased twice at once.
+    //
+    public void testPoolContention(FixturePool<AtomicBoolean> pool) 
+	    throws Throwable
+    {
+	Thread[] threads = new Thread[4];
+	final Throwable[] error = new Throwable[1];
+	for (int i = 0; i < threads.length; i++) {
+	    threads[i] = new Thread(() -> {
+		try {
+		    for (int j = 0; j < 10000; j++) {
+			pool.use(inUse -> assertTrue("leased twice", 
+					       inUse.compareAndSet(false, true)));
+		    }
+		} catch (Throwable t) {
+		    error[0] = t;
+		}
+	    });
+	    threads[i].start();
+	}
+	for (Thread t : threads) {
+	    t.join();
+	}
+	if (error[0] != null) {
+	    throw error[0];
+	}
+    }
+
+    private volatile int x;
+    private volatile int y;
+
+    //
+    // Store buffering, also known as Dekker's:  Since x and y are volatile,
+    // both actors can't see the other's variable as zero.
+    //
+    public void testDekker() {
+	Testy.stress(
+	    new StressActor[] {
+		() -> { x = 1; return y; },
+		() -> { y = 1; return x; }
+	    },
+	    100000,
+	    new StressArbiter() {
+		public Outcome classify(int[] r) {
+		    if (r[0] == 0 && r[1] == 0) {
+			return Outcome.FORBIDDEN;
+		    }
+		    return Outcome.ACCEPTABLE;
+		}
+		public void reset() {
+		    x = 0;
+		    y = 0;
+		}
+	    }
+	);
+    }
+
+    private static final class Line {
+	final String item;
+	final double price;
+	Line next;
+
+	Line(String item, double price) {
+	    this.item = item;
+	    this.price = price;
+	}
+    }
+
+    private static final class Order {
+	final List<Line> lines = new ArrayList<>();
+
+	Order(Line... lines) {
+	    this.lines.addAll(Arrays.asList(lines));
+	}
+    }
+
+    private static void awaitQuietly(java.util.concurrent.CountDownLatch l) {
+	try {
+	    l.await();
+	} catch (InterruptedException ex) {
+	}
+    }
+
+    //
+    // Compile a submission for the batch grader into a new directory.  Its
+    // main() runs the given tests, or throws if tests is null.
+    //
+    private static java.io.File compileSubmission(String tests) {
+	return compileSubmissionBody((tests == null) 
+	    			     ? "throw new IllegalStateException(\"boom\");"
+				     : "Testy.run(" + tests + ");");
+    }
+
+    //
+    // Compile a submission whose main() ends with the given statements.
+    //
+    private static java.io.File compileSubmissionBody(String body) {
+	try {
+	    java.io.File dir 
+	    	= java.nio.file.Files.createTempDirectory("testy").toFile();
+	    dir.deleteOnExit();
+	    java.io.File src = new java.io.File(dir, "Submission.java");
+	    java.nio.file.Files.write(src.toPath(), (
+		  "import edu.calpoly.testy.Testy;\n"
+		+ "public class Submission {\n"
+		+ "    static int runs;\n"
+		+ "    public static void main(String[] args) throws Exception {\n"
+		+ "        if (++runs != 1) {\n"
+		+ "            throw new IllegalStateException(\"shared\");\n"
+		+ "        }\n"
+		+ "        Thread t = new Thread(() -> Testy.run(() -> { }));\n"
+		+ "        t.start();\n"
+		+ "        t.join();\n"
+		+ "        " + body + "\n"
+		+ "    }\n"
+		+ "}\n").getBytes("UTF-8"));
+	    // Testy is in ../src when run from test/run.sh, and on the class
+	    // path when run from build/test-all.sh.
+	    String sourcepath = new java.io.File("../src").isDirectory() 
+	    			? "../src" : "src";
+	    int status = javax.tools.ToolProvider.getSystemJavaCompiler().run(
+		null, null, null, "-d", dir.toString(), "-implicit:none",
+		"-cp", System.getProperty("java.class.path"),
+		"-sourcepath", sourcepath, src.toString());
+	    src.delete();
+	    new java.io.File(dir, "Submission.class").deleteOnExit();
+	    if (status != 0) {
+		throw new IllegalStateException("Can't compile submission");
+	    }
+	    return dir;
+	} catch (java.io.IOException ex) {
+	    throw new java.io.UncheckedIOException(ex);
+	}
+    }
+
+    //
+    // Run the tests, and add what they print to output, as well as 
+    // printing it as usual.  This lets us check how tests failed.
+    //
+    private static int runCapturing(StringBuilder output, 
+    				    TestRunnable... tests) 
+    {
+	java.io.PrintStream out = System.out;
+	java.io.PrintStream err = System.err;
+	java.io.ByteArrayOutputStream outBuf 
+	    = new java.io.ByteArrayOutputStream();
+	java.io.ByteArrayOutputStream errBuf 
+	    = new java.io.ByteArrayOutputStream();
+	System.setOut(new java.io.PrintStream(outBuf, true));
+	System.setErr(new java.io.PrintStream(errBuf, true));
+	try {
+	    return Testy.run(tests);
+	} finally {
+	    System.setOut(out);
+	    System.setErr(err);
+	    out.print(outBuf);
+	    err.print(errBuf);
+	    output.append(outBuf).append(errBuf);
+	}
+    }
+
+    private static void assertContains(CharSequence output, String text) {
+	assertTrue("output has \"" + text + "\"", 
+		   output.toString().contains(text));
+    }
+
+    private static java.nio.file.Path tempFile(String contents) {
+	try {
+	    java.nio.file.Path p = java.nio.file.Files.createTempFile("testy", 
+	    							    ".txt");
+	    p.toFile().deleteOnExit();
+	    return java.nio.file.Files.write(p, contents.getBytes("UTF-8"));
+	} catch (java.io.IOException ex) {
+	    throw new java.io.UncheckedIOException(ex);
+	}
+    }
 
 
     public static void main(String[] args) {
@@ -356,6 +643,911 @@ public class Main {
 	);
 	System.out.println("Expected 0 failures.  Got:  " + failed);
 	System.out.println();
+
+	//
+	// Test batch grading.  The first submission is graded twice, to check
+	// that each time gets its own copy of its classes.  Each submission 
+	// also runs a test on a thread of its own, which should be counted
+	// for it.
+	//
+	final List<java.io.File> submissions = Arrays.asList(
+	    compileSubmission("() -> { }, () -> { }"),
+	    compileSubmission("() -> { }, () -> { throw new Exception(); }"),
+	    compileSubmission(null));
+	failed = Testy.run(
+	    () -> {
+		List<BatchGrader.Result> results = new BatchGrader("Submission", 2)
+		    .grade(Arrays.asList(submissions.get(0), submissions.get(1),
+					 submissions.get(2), submissions.get(0)));
+		assertEquals(4, results.size());
+		for (int i = 0; i < 4; i++) {
+		    assertEquals(submissions.get(i % 3), 
+				 results.get(i).getSubmission());
+		}
+		for (int i : new int[] { 0, 3 }) {
+		    assertNull("error " + i, results.get(i).getError());
+		    assertEquals("passed " + i, 3, results.get(i).getPassed());
+		    assertEquals("failed " + i, 0, results.get(i).getFailed());
+		}
+		assertNull(results.get(1).getError());
+		assertEquals(2, results.get(1).getPassed());
+		assertEquals(1, results.get(1).getFailed());
+		assertEquals("boom", results.get(2).getError().getMessage());
+		assertEquals(1, results.get(2).getPassed());
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test the per-test results and weighted scores of batch grading.  A
+	// test on the submission's own thread has no name, so it counts as 1.
+	// The rest are worth 5 + 3 + 4 when they pass, so each scores 13.
+	//
+	final java.io.File weighted = compileSubmissionBody(
+	      "Testy.run(Testy.test(\"big\", () -> { }),\n"
+	    + "          Testy.test(\"small\", () -> {\n"
+	    + "              throw new Exception(\"no\");\n"
+	    + "          }),\n"
+	    + "          Testy.test(\"slow\", () -> Thread.sleep(30)));\n"
+	    + "Testy.runAsync(Testy.asyncTest(\"later\", () ->\n"
+	    + "    java.util.concurrent.CompletableFuture.runAsync(() -> { })));");
+	failed = Testy.run(
+	    () -> {
+		List<BatchGrader.Result> results = new BatchGrader("Submission", 3)
+		    .weight("big", 5).weight("small", 2).weight("slow", 3)
+		    .weight("later", 4)
+		    .grade(Arrays.asList(weighted, weighted, weighted, weighted));
+		for (BatchGrader.Result r : results) {
+		    assertNull(r.getError());
+		    assertEquals(13.0, r.getScore());
+		    assertEquals(4, r.getPassed());
+		    assertEquals(1, r.getFailed());
+		    assertEquals(5, r.getTests().size());
+		    for (BatchGrader.TestResult t : r.getTests()) {
+			String name = String.valueOf(t.getName());
+			int index = Arrays.asList("null", "big", "small", "slow",
+						  "later").indexOf(name);
+			assertEquals(name, new int[] { 0, 0, 1, 2, 0 }[index],
+				     t.getIndex());
+			assertEquals(name, "small".equals(name), 
+				     t.getFailure() != null);
+			assertTrue(name, t.getDurationNanos() >= 0);
+		    }
+		}
+	    },
+	    () -> {
+		BatchGrader.Result r = new BatchGrader("Submission", 1)
+		    .grade(Arrays.asList(weighted)).get(0);
+		for (BatchGrader.TestResult t : r.getTests()) {
+		    if ("small".equals(t.getName())) {
+			assertEquals("no", t.getFailure().getMessage());
+		    } else if ("slow".equals(t.getName())) {
+			assertTrue(t.getDurationNanos() >= 30000000);
+		    }
+		}
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Submissions share some of Testy's state when features like test
+	// impact are on, so then they're graded one at a time.  Each of these
+	// takes 300 ms, so on two threads they'd take about 300 ms in all.
+	//
+	final java.io.File sleeper 
+	    = compileSubmission("() -> Thread.sleep(300)");
+	final StringBuilder sequential = new StringBuilder();
+	// Nothing is re-run, so the history file is never written
+	System.setProperty("testy.flakyHistory", "unused.properties");
+	failed = runCapturing(sequential,
+	    () -> {
+		long start = System.nanoTime();
+		List<BatchGrader.Result> results = new BatchGrader("Submission", 2)
+		    .grade(Arrays.asList(sleeper, sleeper));
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		assertEquals(2, results.get(0).getPassed());
+		assertEquals(2, results.get(1).getPassed());
+		assertTrue("took " + elapsed + " ms", elapsed >= 600);
+	    }
+	);
+	System.clearProperty("testy.flakyHistory");
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertContains(sequential, "Grading one submission at a "
+	    	+ "time, since testy.flakyHistory keeps state they'd share.")
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test resource limits
+	//
+	System.setProperty("testy.cpuLimit", "500");
+	System.setProperty("testy.allocLimit", "100000000");
+	System.setProperty("testy.monitorInterval", "20");
+	final StringBuilder limits = new StringBuilder();
+	failed = runCapturing(limits,
+	    () -> tests.testPass1(),
+	    () -> tests.testSpin(),
+	    () -> tests.testAllocate()
+	);
+	System.clearProperty("testy.cpuLimit");
+	System.clearProperty("testy.allocLimit");
+	System.clearProperty("testy.monitorInterval");
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertContains(limits, 
+	    		"ResourceExceeded: CPU time limit of 500 ms exceeded"),
+	    () -> assertContains(limits, "ResourceExceeded: Allocation limit "
+	    				 + "of 100000000 bytes exceeded"),
+	    () -> assertContains(limits, "(2 exceeded resource limits.)")
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test deadlock and stuck thread detection
+	//
+	System.setProperty("testy.detectDeadlocks", "true");
+	System.setProperty("testy.stuckTimeout", "300");
+	System.setProperty("testy.monitorInterval", "20");
+	final StringBuilder stuck = new StringBuilder();
+	failed = runCapturing(stuck,
+	    () -> Thread.sleep(50),
+	    () -> tests.testHelperBusy(600),
+	    () -> tests.testDeadlock(),
+	    () -> Thread.sleep(60000)
+	);
+	System.clearProperty("testy.detectDeadlocks");
+	System.clearProperty("testy.stuckTimeout");
+	System.clearProperty("testy.monitorInterval");
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertContains(stuck, "TestFailed: Deadlock detected"),
+	    () -> assertContains(stuck, "TestFailed: No progress for 300 ms")
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Each watched test gets a thread group of its own.  Check that they
+	// don't pile up once their tests are done.  From JDK 19, a parent
+	// only holds its groups weakly, so they're counted until they're 
+	// collected.
+	//
+	final ThreadGroup here = Thread.currentThread().getThreadGroup();
+	System.gc();
+	final int groups = here.activeGroupCount();
+	final TestRunnable[] quick = new TestRunnable[20];
+	Arrays.fill(quick, (TestRunnable) () -> { });
+	System.setProperty("testy.stuckTimeout", "300");
+	Testy.run(quick);
+	System.clearProperty("testy.stuckTimeout");
+	failed = Testy.run(
+	    () -> assertEventually("thread groups", 10000, () -> {
+		System.gc();
+		return here.activeGroupCount() <= groups;
+	    })
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test re-running failed tests
+	//
+	System.setProperty("testy.reruns", "3");
+	failed = Testy.run(
+	    () -> tests.testPass1(),
+	    () -> tests.testFlaky(),
+	    () -> tests.testFail1()
+	);
+	System.clearProperty("testy.reruns");
+	System.out.println("Expected 1 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Failed tests are re-run one at a time, unless testy.parallelism
+	// is set, since they may share state.
+	//
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicInteger overlaps = new AtomicInteger();
+	final TestRunnable sharing = () -> {
+	    if (active.incrementAndGet() > 1) {
+		overlaps.incrementAndGet();
+	    }
+	    Thread.sleep(50);
+	    active.decrementAndGet();
+	    fail("always fails");
+	};
+	System.setProperty("testy.reruns", "2");
+	failed = Testy.run(sharing, sharing, sharing);
+	final int sequentialOverlaps = overlaps.getAndSet(0);
+	System.setProperty("testy.parallelism", "3");
+	failed += Testy.run(sharing, sharing, sharing);
+	System.clearProperty("testy.parallelism");
+	System.clearProperty("testy.reruns");
+	System.out.println("Expected 6 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertEquals(0, sequentialOverlaps),
+	    () -> assertTrue("overlapped", overlaps.get() > 0)
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// A test that only goes over its limit once is flaky, so it doesn't 
+	// count as having exceeded the limit, or as failed.
+	//
+	System.setProperty("testy.reruns", "2");
+	System.setProperty("testy.cpuLimit", "500");
+	System.setProperty("testy.monitorInterval", "20");
+	final StringBuilder rerun = new StringBuilder();
+	failed = runCapturing(rerun,
+	    () -> tests.testSpinOnce()
+	);
+	System.clearProperty("testy.reruns");
+	System.clearProperty("testy.cpuLimit");
+	System.clearProperty("testy.monitorInterval");
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertContains(rerun, "is flaky:  passed 2 of 2 re-runs"),
+	    () -> assertFalse(rerun.toString().contains("exceeded resource"))
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test named tests, and selecting them
+	//
+	System.setProperty("testy.exclude", "parser/l*");
+	failed = Testy.run(new String[] { "--include=parser/**,regex:util/.*" },
+	    Testy.test("parser/small", () -> tests.testPass1()),
+	    Testy.test("parser/large", () -> tests.testFail1()),
+	    Testy.test("parser/deep/nesting", () -> tests.testFail1()),
+	    Testy.test("util/strings", () -> tests.testFail1()),
+	    () -> tests.testFail1()
+	);
+	System.clearProperty("testy.exclude");
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test suites, and their fixtures
+	//
+	final int[] created = new int[1];
+	final int[] closed = new int[1];
+	Suite outer = Testy.suite("outer");
+	Fixture<String> shared = outer.fixture(() -> { 
+					created[0]++; 
+					return "shared"; 
+				    }, 
+				    v -> closed[0]++);
+	outer.add(
+	    Testy.test("get", () -> assertEquals("shared", shared.get())),
+	    Testy.suite("inner").add(
+		() -> assertEquals("shared", shared.get()),
+		() -> assertEquals("created once", 1, created[0]),
+		() -> tests.testFail1()
+	    ),
+	    () -> assertEquals("not closed yet", 0, closed[0])
+	);
+	failed = Testy.run(
+	    outer,
+	    () -> assertEquals("closed", 1, closed[0])
+	);
+	System.out.println("Expected 1 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test fixture pools
+	//
+	final AtomicInteger made = new AtomicInteger();
+	final AtomicInteger destroyed = new AtomicInteger();
+	Suite pooled = Testy.suite("pooled");
+	FixturePool<AtomicBoolean> pool = pooled.pool(2, 
+		() -> {
+		    made.incrementAndGet();
+		    return new AtomicBoolean();
+		},
+		inUse -> inUse.set(false),
+		inUse -> destroyed.incrementAndGet());
+	pooled.add(
+	    () -> assertEquals("made before the first test", 2, made.get()),
+	    () -> tests.testPoolContention(pool),
+	    () -> pool.lease(),		// Never given back
+	    () -> assertEquals("no more made", 2, made.get()),
+	    () -> {
+		AtomicBoolean value = pool.lease();
+		pool.release(value);
+		try {
+		    pool.release(value);
+		    fail("released twice");
+		} catch (IllegalStateException expected) {
+		}
+		AtomicBoolean foreign = new AtomicBoolean(true);
+		try {
+		    pool.release(foreign);
+		    fail("released a foreign instance");
+		} catch (IllegalStateException expected) {
+		}
+		assertTrue("foreign instance reset", foreign.get());
+	    }
+	);
+	failed = Testy.run(
+	    pooled,
+	    () -> assertEquals("all destroyed", made.get(), destroyed.get())
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test stress testing
+	//
+	failed = Testy.run(
+	    () -> tests.testDekker(),
+	    () -> Testy.stress(new StressActor[] { () -> 1, () -> 2 }, 10, 
+			       r -> StressArbiter.Outcome.INTERESTING),
+	    () -> Testy.stress(new StressActor[] { () -> 1 }, 10, 
+			       r -> StressArbiter.Outcome.FORBIDDEN),
+	    () -> Testy.stress(new StressActor[] { () -> 1 / 0 }, 10, 
+			       r -> StressArbiter.Outcome.ACCEPTABLE)
+	);
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test asynchronous tests
+	//
+	System.setProperty("testy.asyncLimit", "10");
+	System.setProperty("testy.asyncTimeout", "200");
+	List<AsyncTestRunnable> async = new ArrayList<>();
+	for (int i = 0; i < 100; i++) {
+	    final int n = i;
+	    async.add(() -> CompletableFuture.supplyAsync(() -> n * 2)
+			.thenAccept(v -> assertEquals(n * 2, (int) v)));
+	}
+	async.add(Testy.asyncTest("async/exceptional", 
+		() -> CompletableFuture.runAsync(() -> tests.testFail1())));
+	async.add(Testy.asyncTest("async/never", 
+		() -> new CompletableFuture<Void>()));
+	async.add(() -> { throw new TestFailed("not started"); });
+	failed = Testy.runAsync((String[]) null, async);
+	System.clearProperty("testy.asyncLimit");
+	System.clearProperty("testy.asyncTimeout");
+	System.out.println("Expected 3 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// A test that times out is reported as timed out, even when it's the
+	// last one to finish.
+	//
+	System.setProperty("testy.asyncTimeout", "1");
+	final StringBuilder timeouts = new StringBuilder();
+	failed = runCapturing(timeouts, () -> {
+	    for (int i = 0; i < 20; i++) {
+		Testy.runAsync(() -> new CompletableFuture<Void>());
+	    }
+	});
+	System.clearProperty("testy.asyncTimeout");
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	failed = Testy.run(
+	    () -> assertEquals(20, timeouts.toString()
+				   .split("\\(1 timed out\\.\\)", -1).length - 1)
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test virtual time
+	//
+	failed = Testy.run(
+	    () -> tests.testVirtualTime(),
+	    () -> {
+		VirtualClock clock = new VirtualClock();
+		clock.newScheduledExecutor().schedule(() -> tests.testFail1(),
+						     1, TimeUnit.HOURS);
+		clock.advance(Duration.ofDays(1));
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test assertEventually
+	//
+	final AtomicInteger ticks = new AtomicInteger();
+	Thread ticker = new Thread(() -> {
+	    for (int i = 0; i < 5; i++) {
+		LockSupport.parkNanos(20000000);
+		ticks.incrementAndGet();
+	    }
+	});
+	ticker.start();
+	failed = Testy.run(
+	    () -> assertEventually("ticked", 5000, () -> ticks.get() >= 3),
+	    () -> assertEventually("all ticks", 5000, () -> {
+		assertEquals(5, ticks.get());
+	    }),
+	    () -> assertEventually("never", 50, () -> false),
+	    () -> assertEventually("too many ticks", 50, () -> {
+		assertEquals(6, ticks.get());
+	    })
+	);
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test collection assertions
+	//
+	final List<Integer> big = new ArrayList<>();
+	for (int i = 0; i < 1000000; i++) {
+	    big.add(i);
+	}
+	final List<Integer> shuffled = new ArrayList<>(big);
+	java.util.Collections.shuffle(shuffled, new java.util.Random(1));
+	failed = Testy.run(
+	    () -> assertContainsAll(Arrays.asList(5, 999999, 0), shuffled),
+	    () -> assertSameElements(big, shuffled),
+	    () -> assertSameElements(Arrays.asList("a", "b", "a", null), 
+				     Arrays.asList(null, "a", "a", "b")),
+	    () -> assertNoDuplicates(shuffled),
+	    // These should fail
+	    () -> assertContainsAll("contains", big, Arrays.asList(1, 2, 3)),
+	    () -> assertSameElements("same", Arrays.asList("a", "a", "b"), 
+				     Arrays.asList("a", "b", "b", "c")),
+	    () -> assertNoDuplicates("no dups", Arrays.asList(1, 2, 1, 3, 1))
+	);
+	System.out.println("Expected 3 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test unordered primitive arrays
+	//
+	failed = Testy.run(
+	    () -> assertSameElementsUnordered(new int[] { 3, 1, 2, 1 },
+	    				      new int[] { 1, 2, 1, 3 }),
+	    () -> assertSameElementsUnordered(new long[] { Long.MAX_VALUE, -1 },
+	    				      new long[] { -1, Long.MAX_VALUE }),
+	    () -> assertSameElementsUnordered(new double[] { 0.5, 1.0, 2.0 },
+	    				      new double[] { 2.0001, 0.5, 1.0 },
+					      0.001),
+	    () -> assertSameElementsUnordered((int[]) null, null),
+	    // These should fail
+	    () -> assertSameElementsUnordered("int", new int[] { 1, 2, 2 },
+	    				      new int[] { 2, 1, 1 }),
+	    () -> assertSameElementsUnordered("long", new long[] { 1, 2 },
+	    				      new long[] { 2, 1, 3 }),
+	    () -> assertSameElementsUnordered("double", new double[] { 1.0 },
+	    				      new double[] { 1.1 }, 0.001),
+	    () -> assertSameElementsUnordered("null", new int[0], null)
+	);
+	System.out.println("Expected 4 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test streaming assertions
+	//
+	final byte[] bytes = new byte[200000];
+	new java.util.Random(2).nextBytes(bytes);
+	final byte[] changed = bytes.clone();
+	changed[150001]++;
+	failed = Testy.run(
+	    () -> assertStreamsEqual(big.iterator(), big.iterator()),
+	    () -> assertStreamsEqual(new java.io.ByteArrayInputStream(bytes),
+				     new java.io.ByteArrayInputStream(bytes)),
+	    () -> assertReadersEqual(new java.io.StringReader("a\nb\n"),
+				     new java.io.StringReader("a\nb\n")),
+	    // These should fail
+	    () -> assertStreamsEqual("iterator", big.iterator(), 
+				     shuffled.iterator()),
+	    () -> assertStreamsEqual("short", big.iterator(), 
+				     big.subList(0, 10).iterator()),
+	    () -> assertStreamsEqual("bytes", 
+				     new java.io.ByteArrayInputStream(bytes),
+				     new java.io.ByteArrayInputStream(changed)),
+	    () -> assertReadersEqual("reader", 
+	    			     new java.io.StringReader("one\ntwo\n"),
+				     new java.io.StringReader("one\ntwa\n"))
+	);
+	System.out.println("Expected 4 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test file assertions
+	//
+	final java.nio.file.Path f1 = tempFile("line one\nline two\n");
+	final java.nio.file.Path f2 = tempFile("line one\nline two\n");
+	final java.nio.file.Path f3 = tempFile("line one\nline 2wo\n");
+	final java.nio.file.Path f4 = tempFile("line one\n");
+	final java.nio.file.Path b1 = tempFile("line\0one\nline two\n");
+	final java.nio.file.Path b2 = tempFile("line\0one\nline 2wo\n");
+	// The SHA-256 of f3's contents, not f1's
+	final String sha = 
+	    "09f489a43f06ea98149aae71cd786b9e444fc2eab701912d179ad179e9a447de";
+	failed = Testy.run(
+	    () -> assertFilesEqual(f1, f2),
+	    () -> assertFileMatchesHash(f1, "MD5", 
+	    				"987929d61c9b69f0c6406b840aa77fd8"),
+	    () -> assertFileMatchesHash(f3, "SHA-256", sha),
+	    () -> {
+		try {
+		    assertFilesEqual(f1, f3);
+		    fail("no failure");
+		} catch (TestFailed ex) {
+		    assertContains(ex.getMessage(), 
+		    		   " at byte 14 (line 2, column 6), ");
+		}
+	    },
+	    () -> {
+		try {
+		    assertFilesEqual(b1, b2);
+		    fail("no failure");
+		} catch (TestFailed ex) {
+		    assertContains(ex.getMessage(), " at byte 14, ");
+		}
+	    },
+	    // These should fail
+	    () -> assertFilesEqual("different", f1, f3),
+	    () -> assertFilesEqual("shorter", f1, f4),
+	    () -> assertFileMatchesHash("hash", f1, "SHA-256", sha)
+	);
+	System.out.println("Expected 3 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test snapshots.  The first run of each saves it.
+	//
+	final java.io.File snapshots 
+	    = new java.io.File(f1 + "-snapshots");
+	System.setProperty("testy.snapshotDir", snapshots.toString());
+	failed = Testy.run(
+	    () -> assertMatchesSnapshot("text", "one\ntwo\nthree\n"),
+	    () -> assertMatchesSnapshot("text", "one\ntwo\nthree\n"),
+	    () -> assertMatchesSnapshot("array/1", new int[][] {{ 1, 2 }}),
+	    () -> assertMatchesSnapshot("array/1", new int[][] {{ 1, 2 }}),
+	    // These should fail
+	    () -> assertMatchesSnapshot("text", "one\n2\nthree\n"),
+	    () -> assertMatchesSnapshot("array/1", new int[][] {{ 1 }}),
+	    () -> {
+		try {
+		    assertMatchesSnapshot("changed text", "text", "one\n");
+		} catch (AssertionError ex) {
+		    assertTrue(ex.getMessage().startsWith("changed text : "));
+		    throw ex;
+		}
+	    }
+	);
+	System.out.println("Expected 3 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test that a snapshot whose contents were changed by hand, without
+	// changing its header, is caught the first time it's used.  Two
+	// texts with the same length and CRC32 must not match, either.
+	//
+	try {
+	    java.nio.file.Files.write(
+	    	new java.io.File(snapshots, "edited.snap").toPath(),
+		("testy-snapshot 5 106675dc1490d5cdd6d1f0410731316c"
+		 + "e93fc964c6cf6726e2b0d53e19688feb\nbad!\n")
+		 .getBytes("UTF-8"));
+	} catch (java.io.IOException ex) {
+	    throw new java.io.UncheckedIOException(ex);
+	}
+	failed = Testy.run(
+	    () -> assertMatchesSnapshot("text", "one\ntwo\nthree\n"),
+	    // This should fail
+	    () -> {
+		try {
+		    assertMatchesSnapshot("edited", "good\n");
+		} catch (AssertionError ex) {
+		    assertTrue(ex.getMessage().contains(
+		    	"its contents don't match its header"));
+		    throw ex;
+		}
+	    },
+	    // These have the same length and CRC32, so this should fail too
+	    () -> assertMatchesSnapshot("collision", "0008ddf9"),
+	    () -> assertMatchesSnapshot("collision", "02008894")
+	);
+	for (java.io.File f : snapshots.listFiles()) {
+	    f.delete();
+	}
+	snapshots.delete();
+	System.out.println("Expected 2 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test deep comparison
+	//
+	final DeepCompare fields = new DeepCompare()
+	    .field(Order.class, "lines", o -> o.lines)
+	    .field(Line.class, "item", l -> l.item)
+	    .field(Line.class, "price", l -> l.price)
+	    .field(Line.class, "next", l -> l.next);
+	final Object[] cycle1 = new Object[] { "x", null };
+	cycle1[1] = cycle1;
+	final Object[] cycle2 = new Object[] { "x", null };
+	cycle2[1] = cycle2;
+	final Line chain1 = new Line("first", 0);
+	final Line chain2 = new Line("first", 0);
+	Line l1 = chain1;
+	Line l2 = chain2;
+	for (int i = 0; i < 100000; i++) {
+	    l1 = l1.next = new Line("item", i);
+	    l2 = l2.next = new Line("item", i);
+	}
+	final java.util.Map<String, List<Order>> orders1 = new java.util.TreeMap<>();
+	final java.util.Map<String, List<Order>> orders2 = new java.util.TreeMap<>();
+	orders1.put("orders", Arrays.asList(new Order(new Line("a", 1)),
+			new Order(new Line("b", 2), new Line("c", 3))));
+	orders2.put("orders", Arrays.asList(new Order(new Line("a", 1)),
+			new Order(new Line("b", 2), new Line("c", 3.5))));
+	failed = Testy.run(
+	    () -> assertDeepEquals(fields, orders1, orders1),
+	    () -> assertDeepEquals("cycle", cycle1, cycle2),
+	    () -> assertDeepEquals(fields, chain1, chain2),
+	    () -> assertDeepEquals("primitive", new int[][] {{ 1, 2 }},
+	    			   new int[][] {{ 1, 2 }}),
+	    // These should fail
+	    () -> assertDeepEquals("price", fields, orders1, orders2),
+	    () -> assertDeepEquals("size", Arrays.asList(1, 2, 3),
+	    			   Arrays.asList(1, 2)),
+	    () -> assertDeepEquals("key", orders1, 
+	    			   java.util.Collections.emptyMap()),
+	    () -> assertDeepEquals("element", new long[][] {{ 1, 2 }},
+	    			   new long[][] {{ 1, 3 }})
+	);
+	System.out.println("Expected 4 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test deep comparison of each kind of primitive array.  Floating 
+	// point elements are compared as by equals(), so NaN equals itself.
+	//
+	StringBuilder primitives = new StringBuilder();
+	failed = runCapturing(primitives,
+	    () -> assertDeepEquals("NaN", new double[] { 1, Double.NaN },
+	    			   new double[] { 1, Double.NaN }),
+	    () -> assertDeepEquals("chars", new char[][] {{ 'a', 'b' }},
+	    			   new char[][] {{ 'a', 'b' }}),
+	    // These should fail
+	    () -> assertDeepEquals("double", new double[] { 1, 2, 3 },
+	    			   new double[] { 1, 2, 3.5 }),
+	    () -> assertDeepEquals("boolean", new boolean[] { true, true },
+	    			   new boolean[] { true, false }),
+	    () -> assertDeepEquals("float", new float[] { 0.0f },
+	    			   new float[] { -0.0f }),
+	    () -> assertDeepEquals("short", new short[] { 1, 2 },
+	    			   new short[] { 1, 2, 3 }),
+	    () -> assertDeepEquals("byte", new byte[] { 1 },
+	    			   new int[] { 1 })
+	);
+	assertContains(primitives, "double : differs at [2], "
+				   + "expected:  3.0  actual:  3.5");
+	assertContains(primitives, "boolean : differs at [1], "
+				   + "expected:  true  actual:  false");
+	assertContains(primitives, "short : differs at the top, "
+				   + "length expected:  2  actual:  3");
+	System.out.println("Expected 5 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test watch mode.  The watched program is loaded by a class loader
+	// of its own, so it tells us what it saw through a system property.
+	// Editing it should re-run it with the change, and deleting a source
+	// should drop its class.  The watcher never stops, so it's left 
+	// running on a daemon thread.  When these tests are run from source,
+	// Launcher is loaded apart from the rest of Testy, so Watch is 
+	// compiled and loaded on its own.
+	//
+	final java.io.File watched = tempDir();
+	failed = Testy.run(
+	    () -> {
+		writeSource(watched, "Helper", 
+		    "public static String value() { return \"helper\"; }");
+		writeSource(watched, "Watched", watchedMain("one"));
+		final java.lang.reflect.Method watch = compileTesty("Watch")
+		    .loadClass("edu.calpoly.testy.Watch")
+		    .getMethod("main", String[].class);
+		Thread t = new Thread(() -> {
+		    try {
+			watch.invoke(null, (Object) new String[] { 
+			    "-sourcepath", watched.toString(), "Watched" });
+		    } catch (Exception ex) {
+			ex.printStackTrace();
+		    }
+		}, "Watch");
+		t.setDaemon(true);
+		t.start();
+		awaitProperty("testy.watched", "one helper");
+	    },
+	    () -> {
+		writeSource(watched, "Watched", watchedMain("two"));
+		awaitProperty("testy.watched", "two helper");
+	    },
+	    () -> {
+		assertTrue(new java.io.File(watched, "Helper.java").delete());
+		awaitProperty("testy.watched", "two none");
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test Launcher.  It should compile a test program, and the parts of
+	// Testy it uses, in memory and run it, without writing any class
+	// files.  The program has two failing tests, and tells us how many
+	// failed through a system property.
+	//
+	failed = Testy.run(
+	    () -> {
+		java.io.File dir = tempDir();
+		writeSource(dir, "Launched", 
+		      "public static void main(String[] args) {\n"
+		    + "    int failed = edu.calpoly.testy.Testy.run(\n"
+		    + "        () -> { },\n"
+		    + "        () -> edu.calpoly.testy.Assert.fail(\"one\"),\n"
+		    + "        () -> edu.calpoly.testy.Assert.fail(\"two\"));\n"
+		    + "    System.setProperty(\"testy.launched\", \"\" + failed);\n"
+		    + "}\n");
+		java.util.Set<java.nio.file.Path> before = classFiles();
+		Launcher.main(new String[] { 
+		    "-sourcepath", 
+		    dir + java.io.File.pathSeparator + testySourcepath(),
+		    "Launched" });
+		assertEquals("2", System.getProperty("testy.launched"));
+		assertEquals(before, classFiles());
+		assertEquals(Arrays.asList("Launched.java"),
+			     Arrays.asList(dir.list()));
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+    }
+
+    //
+    // The class files under the current directory and Testy's sources.
+    //
+    private static java.util.Set<java.nio.file.Path> classFiles() 
+	throws java.io.IOException
+    {
+	java.util.Set<java.nio.file.Path> result = new java.util.HashSet<>();
+	for (String dir : new String[] { ".", testySourcepath() }) {
+	    try (java.util.stream.Stream<java.nio.file.Path> s 
+		    = java.nio.file.Files.walk(java.nio.file.Paths.get(dir)))
+	    {
+		s.filter(p -> p.toString().endsWith(".class"))
+		 .forEach(p -> result.add(p.toAbsolutePath().normalize()));
+	    }
+	}
+	return result;
     }
-}
 
+    //
+    // Where Testy's sources are.  That's ../src when run from test/run.sh, 
+    // and src when run from build/test-all.sh.
+    //
+    private static String testySourcepath() {
+	return new java.io.File("../src").isDirectory() ? "../src" : "src";
+    }
+
+    //
+    // Compile one of Testy's classes, and the ones it uses, into a new
+    // directory, and return a class loader that loads them from there,
+    // rather than from our parent.
+    //
+    private static ClassLoader compileTesty(String className) 
+	throws java.io.IOException
+    {
+	java.io.File dir = tempDir();
+	String sourcepath = testySourcepath();
+	// The classpath is set so Testy's classes are compiled from source,
+	// rather than found in testy.jar when we're run from there.
+	int status = javax.tools.ToolProvider.getSystemJavaCompiler().run(
+	    null, null, null, "-d", dir.toString(), "-cp", dir.toString(),
+	    "-sourcepath", sourcepath,
+	    sourcepath + "/edu/calpoly/testy/" + className + ".java");
+	if (status != 0) {
+	    throw new IllegalStateException("Can't compile " + className);
+	}
+	// Deleted in reverse order, so each directory is empty by then
+	try (java.util.stream.Stream<java.nio.file.Path> s 
+		= java.nio.file.Files.walk(dir.toPath())) 
+	{
+	    s.forEach(p -> p.toFile().deleteOnExit());
+	}
+	return new java.net.URLClassLoader(
+	    new java.net.URL[] { dir.toURI().toURL() }, 
+	    ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    //
+    // The main() of the program for watch mode to run.
+    //
+    private static String watchedMain(String version) {
+	return "public static void main(String[] args) throws Exception {\n"
+	     + "    String helper = \"none\";\n"
+	     + "    try {\n"
+	     + "        helper = (String) Class.forName(\"Helper\")\n"
+	     + "            .getMethod(\"value\").invoke(null);\n"
+	     + "    } catch (ClassNotFoundException ex) {\n"
+	     + "    }\n"
+	     + "    System.setProperty(\"testy.watched\", \"" + version 
+	     + " \" + helper);\n"
+	     + "}\n";
+    }
+
+    //
+    // Write a class with the given body to dir/name.java.
+    //
+    private static void writeSource(java.io.File dir, String name, 
+    				    String body) 
+	throws java.io.IOException
+    {
+	java.io.File f = new java.io.File(dir, name + ".java");
+	f.deleteOnExit();
+	java.nio.file.Files.write(f.toPath(), 
+	    ("public class " + name + " {\n" + body + "}\n").getBytes("UTF-8"));
+    }
+
+    //
+    // Wait up to 30 seconds for a system property to get the given value.
+    //
+    private static void awaitProperty(String name, String value) 
+	throws InterruptedException
+    {
+	long deadline = System.nanoTime() + 30000000000L;
+	while (!value.equals(System.getProperty(name))) {
+	    if (System.nanoTime() > deadline) {
+		fail(name + " is " + System.getProperty(name) 
+		     + ", not " + value);
+	    }
+	    Thread.sleep(10);
+	}
+    }
+
+    private static java.io.File tempDir() {
+	try {
+	    java.io.File dir 
+		= java.nio.file.Files.createTempDirectory("testy").toFile();
+	    dir.deleteOnExit();
+	    return dir;
+	} catch (java.io.IOException ex) {
+	    throw new java.io.UncheckedIOException(ex);
+	}
+    }
+
+    public void testVirtualTime() throws Exception {
+	VirtualClock clock = new VirtualClock(
+		Instant.parse("2020-01-01T00:00:00Z"), ZoneOffset.UTC);
+	ScheduledExecutorService exec = clock.newScheduledExecutor();
+	final List<String> events = new ArrayList<>();
+	ScheduledFuture<String> expiry = exec.schedule(() -> {
+	    events.add("expired at " + clock.instant());
+	    return "expired";
+	}, 30, TimeUnit.MINUTES);
+	ScheduledFuture<?> ticker = exec.scheduleAtFixedRate(
+		() -> events.add("tick at " + clock.instant()), 
+		10, 10, TimeUnit.MINUTES);
+	exec.execute(() -> events.add("now"));
+	assertEquals("nothing runs until advanced", 0, events.size());
+	clock.advance(Duration.ofMinutes(29));
+	assertFalse(expiry.isDone());
+	clock.advance(Duration.ofMinutes(1));
+	assertEquals("expired", expiry.get());
+	ticker.cancel(false);
+	clock.advance(Duration.ofHours(1));
+	assertEquals(Arrays.asList("now",
+				   "tick at 2020-01-01T00:10:00Z",
+				   "tick at 2020-01-01T00:20:00Z",
+				   "expired at 2020-01-01T00:30:00Z",
+				   "tick at 2020-01-01T00:30:00Z"),
+		     events);
+	assertEquals(Instant.parse("2020-01-01T01:30:00Z"), clock.instant());
+	exec.shutdown();
+	assertTrue(exec.isTerminated());
+    }
+}
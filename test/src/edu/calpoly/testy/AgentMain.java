@@ -0,0 +1,479 @@
+package edu.calpoly.testy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import static edu.calpoly.testy.Assert.assertTrue;
+import static edu.calpoly.testy.Assert.assertEquals;
+import static edu.calpoly.testy.Assert.assertNull;
+import static edu.calpoly.testy.Assert.assertNotNull;
+import static edu.calpoly.testy.Assert.fail;
+
+/**
+ * Tests of Instrumenter, Agent and Impact.  These are in Testy's package,
+ * since those classes aren't public, and separate from Main, since they
+ * leave Probes thinking that the agent is installed.
+ */
+public class AgentMain {
+
+    //
+    // A class with the things that the instrumenter has to move:  stack
+    // map frames with uninitialized types, one at offset 0 (the loop in
+    // countDown()), exception tables, both kinds of switch, generics,
+    // lambdas, wide constants, and type annotations in code.  It's
+    // compiled with -g, so it has all of the debugging tables too.
+    //
+    private static final String SAMPLE =
+	  "import java.lang.annotation.ElementType;\n"
+	+ "import java.lang.annotation.Retention;\n"
+	+ "import java.lang.annotation.RetentionPolicy;\n"
+	+ "import java.lang.annotation.Target;\n"
+	+ "import java.util.ArrayList;\n"
+	+ "import java.util.Arrays;\n"
+	+ "import java.util.List;\n"
+	+ "import java.util.function.Supplier;\n"
+	+ "public class Sample implements Supplier<Object> {\n"
+	+ "    @Target(ElementType.TYPE_USE)\n"
+	+ "    @Retention(RetentionPolicy.RUNTIME)\n"
+	+ "    @interface Checked { }\n"
+	+ "    static int finallies;\n"
+	+ "    private final List<String> names;\n"
+	+ "    public Sample() {\n"
+	+ "        this(new ArrayList<String>(Math.random() < 2 ? 4 : 8));\n"
+	+ "    }\n"
+	+ "    Sample(List<String> names) {\n"
+	+ "        this.names = names;\n"
+	+ "    }\n"
+	+ "    static int countDown(int n) {\n"
+	+ "        while (n > 10) {\n"
+	+ "            n -= 3;\n"
+	+ "        }\n"
+	+ "        return n;\n"
+	+ "    }\n"
+	+ "    static int parse(String s) {\n"
+	+ "        try {\n"
+	+ "            return Integer.parseInt(s);\n"
+	+ "        } catch (NumberFormatException ex) {\n"
+	+ "            return -1;\n"
+	+ "        } finally {\n"
+	+ "            finallies++;\n"
+	+ "        }\n"
+	+ "    }\n"
+	+ "    static <T extends Comparable<T>> T max(List<@Checked T> list) {\n"
+	+ "        T best = null;\n"
+	+ "        for (T t : list) {\n"
+	+ "            if (best == null || t.compareTo(best) > 0) {\n"
+	+ "                best = t;\n"
+	+ "            }\n"
+	+ "        }\n"
+	+ "        return best;\n"
+	+ "    }\n"
+	+ "    static int dense(int k) {\n"
+	+ "        switch (k) {\n"
+	+ "            case 0: return 10;\n"
+	+ "            case 1: return 11;\n"
+	+ "            case 2: return 12;\n"
+	+ "            default: return 0;\n"
+	+ "        }\n"
+	+ "    }\n"
+	+ "    static int sparse(int k) {\n"
+	+ "        switch (k) {\n"
+	+ "            case 1: return 1;\n"
+	+ "            case 1000: return 2;\n"
+	+ "            case 100000: return 3;\n"
+	+ "            default: return 0;\n"
+	+ "        }\n"
+	+ "    }\n"
+	+ "    static long big() {\n"
+	+ "        return 1234567890123L;\n"
+	+ "    }\n"
+	+ "    static double scale(double d) {\n"
+	+ "        return d * 2.5;\n"
+	+ "    }\n"
+	+ "    public Object get() {\n"
+	+ "        names.add(\"b\");\n"
+	+ "        names.add(\"c\");\n"
+	+ "        names.add(\"a\");\n"
+	+ "        names.sort((x, y) -> y.compareTo(x));\n"
+	+ "        Object first = (@Checked Object) names.get(0);\n"
+	+ "        return Arrays.asList(countDown(25), parse(\"42\"), parse(\"x\"),\n"
+	+ "                             max(names), first, dense(2), sparse(100000),\n"
+	+ "                             big(), scale(2), finallies, new Object() {\n"
+	+ "                                 public String toString() {\n"
+	+ "                                     return \"inner\";\n"
+	+ "                                 }\n"
+	+ "                             });\n"
+	+ "    }\n"
+	+ "}\n";
+
+    private static final String SAMPLE_RESULT
+	= "[10, 42, -1, c, c, 12, 3, 1234567890123, 5.0, 2, inner]";
+
+    //
+    // Loads the classes in a directory itself, rather than asking its
+    // parent, and puts probes in them the way the agent does.  Since it
+    // isn't the bootstrap class loader, the JVM verifies every class it
+    // defines.
+    //
+    private static final class InstrumentingLoader extends URLClassLoader {
+
+	private final boolean lines;
+
+	InstrumentingLoader(File dir, boolean lines) throws IOException {
+	    super(new URL[] { dir.toURI().toURL() },
+	    	  AgentMain.class.getClassLoader());
+	    this.lines = lines;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve)
+		throws ClassNotFoundException
+	{
+	    synchronized(getClassLoadingLock(name)) {
+		Class<?> c = findLoadedClass(name);
+		if (c == null) {
+		    String file = name.replace('.', '/') + ".class";
+		    URL url = findResource(file);
+		    if (url == null) {
+			return super.loadClass(name, resolve);
+		    }
+		    byte[] classFile;
+		    try {
+			classFile = Files.readAllBytes(new File(url.toURI())
+							   .toPath());
+		    } catch (Exception ex) {
+			throw new ClassNotFoundException(name, ex);
+		    }
+		    byte[] b = Instrumenter.instrument(name.replace('.', '/'),
+		    				classFile, crc(classFile), lines);
+		    if (b == null) {
+			b = classFile;
+		    }
+		    c = defineClass(name, b, 0, b.length);
+		}
+		if (resolve) {
+		    resolveClass(c);
+		}
+		return c;
+	    }
+	}
+    }
+
+    //
+    // A class loader with no parent, like a plugin's, that passes the 
+    // classes it defines through the agent's transformer.
+    //
+    private static final class IsolatedLoader extends URLClassLoader {
+
+	private final Agent.Transformer transformer;
+	int transformed;
+
+	IsolatedLoader(File dir, Agent.Transformer transformer) 
+		throws IOException 
+	{
+	    super(new URL[] { dir.toURI().toURL() }, null);
+	    this.transformer = transformer;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) 
+		throws ClassNotFoundException 
+	{
+	    URL url = findResource(name.replace('.', '/') + ".class");
+	    if (url == null) {
+		throw new ClassNotFoundException(name);
+	    }
+	    byte[] b;
+	    try {
+		b = Files.readAllBytes(new File(url.toURI()).toPath());
+	    } catch (Exception ex) {
+		throw new ClassNotFoundException(name, ex);
+	    }
+	    byte[] changed = transformer.transform(this, 
+	    		name.replace('.', '/'), null, null, b);
+	    if (changed != null) {
+		transformed++;
+		b = changed;
+	    }
+	    return defineClass(name, b, 0, b.length);
+	}
+    }
+
+    //
+    // The numbers of the first lines in SAMPLE with the given text.
+    //
+    private static List<String> linesOf(String... text) {
+	List<String> lines = Arrays.asList(SAMPLE.split("\n"));
+	List<String> result = new ArrayList<>();
+	for (String t : text) {
+	    for (int i = 0; i < lines.size(); i++) {
+		if (lines.get(i).contains(t)) {
+		    result.add(Integer.toString(i + 1));
+		    break;
+		}
+	    }
+	}
+	return result;
+    }
+
+    private static long crc(byte[] b) {
+	CRC32 crc = new CRC32();
+	crc.update(b, 0, b.length);
+	return crc.getValue();
+    }
+
+    //
+    // Compile the given sources, each of which has a public class, into
+    // dir, with all debugging information.
+    //
+    private static void compile(File dir, String... sources)
+	    throws IOException
+    {
+	List<String> args = new ArrayList<>(Arrays.asList(
+		"-g", "-d", dir.toString()));
+	for (String source : sources) {
+	    String name = source.substring(source.indexOf("public class ")
+	    				   + 13).split(" ")[0];
+	    File f = new File(dir, name + ".java");
+	    Files.write(f.toPath(), source.getBytes(StandardCharsets.UTF_8));
+	    args.add(f.toString());
+	}
+	int status = javax.tools.ToolProvider.getSystemJavaCompiler().run(
+		null, null, null, args.toArray(new String[args.size()]));
+	if (status != 0) {
+	    throw new IllegalStateException("Can't compile samples");
+	}
+    }
+
+    private static File tempDir() throws IOException {
+	File dir = Files.createTempDirectory("testy").toFile();
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    for (File f : dir.listFiles()) {
+		f.delete();
+	    }
+	    dir.delete();
+	}));
+	return dir;
+    }
+
+    private static String impactClass(String name, int value) {
+	return "public class " + name + " {\n"
+	     + "    public static int value() {\n"
+	     + "        return " + value + ";\n"
+	     + "    }\n"
+	     + "}\n";
+    }
+
+    private static Object callValue(ClassLoader loader, String className)
+	    throws Exception
+    {
+	Method m = loader.loadClass(className).getMethod("value");
+	return m.invoke(null);
+    }
+
+    //
+    // Run three tests with test impact on, with a new class loader each
+    // time, and return the names of the tests that were run.
+    //
+    private static List<String> runImpact(File dir) throws IOException {
+	List<String> ran = new ArrayList<>();
+	Thread current = Thread.currentThread();
+	ClassLoader old = current.getContextClassLoader();
+	try (InstrumentingLoader loader = new InstrumentingLoader(dir, false)) {
+	    current.setContextClassLoader(loader);
+	    int failed = Testy.run(
+		Testy.test("a", () -> {
+		    ran.add("a");
+		    callValue(loader, "ImpactA");
+		}),
+		Testy.test("b", () -> {
+		    ran.add("b");
+		    callValue(loader, "ImpactB");
+		}),
+		Testy.test("fails", () -> {
+		    ran.add("fails");
+		    callValue(loader, "ImpactA");
+		    fail("always fails");
+		})
+	    );
+	    System.out.println("Expected 1 failures.  Got:  " + failed);
+	} finally {
+	    current.setContextClassLoader(old);
+	}
+	return ran;
+    }
+
+    public static void main(String[] args) throws Exception {
+	File dir = tempDir();
+	compile(dir, SAMPLE, impactClass("ImpactA", 1),
+		impactClass("ImpactB", 2));
+	ClassLoader platform = ClassLoader.getSystemClassLoader().getParent();
+
+	//
+	// Test instrumenting, and that the probes are hit
+	//
+	int failed = Testy.run(
+	    () -> {
+		byte[] b = Files.readAllBytes(
+			new File(dir, "Sample.class").toPath());
+		assertTrue("has type annotations",
+			   new String(b, StandardCharsets.ISO_8859_1)
+			   	.contains("RuntimeVisibleTypeAnnotations"));
+	    },
+	    () -> {
+		try (InstrumentingLoader loader 
+			= new InstrumentingLoader(dir, true)) 
+		{
+		    Class<?> c = loader.loadClass("Sample");
+		    assertEquals(loader, c.getClassLoader());
+		    @SuppressWarnings("unchecked")
+		    Supplier<Object> sample
+		    	= (Supplier<Object>) c.getConstructor().newInstance();
+		    assertEquals(SAMPLE_RESULT, sample.get().toString());
+		}
+		Set<String> seen = new HashSet<>();
+		Set<String> run = new HashSet<>();
+		Set<String> notRun = new HashSet<>();
+		for (Map.Entry<Integer, boolean[]> e
+			: Probes.snapshot(true).entrySet())
+		{
+		    String name = Probes.getClassName(e.getKey());
+		    if (!name.startsWith("Sample")) {
+			continue;
+		    }
+		    seen.add(name);
+		    String[] probes = Probes.getMethods(e.getKey());
+		    for (int i = 0; i < probes.length; i++) {
+			if (probes[i].contains("(")) {
+			    assertTrue(name + "." + probes[i] + " hit",
+				       e.getValue()[i]);
+			} else {
+			    (e.getValue()[i] ? run : notRun).add(probes[i]);
+			}
+		    }
+		}
+		assertEquals(new HashSet<>(Arrays.asList("Sample", "Sample$1")),
+			     seen);
+		assertTrue("run " + run, run.containsAll(linesOf(
+			"this(new", "this.names", "n -= 3", "return n;",
+			"return -1", "finallies++", "best = t;", "case 2:",
+			"case 100000:", "d * 2.5", "names.sort", "\"inner\"")));
+		assertTrue("not run " + notRun, notRun.containsAll(linesOf(
+			"case 0:", "case 1:", "case 1000:")));
+	    },
+	    () -> {
+		String file = new File(dir, "coverage.bin").toString();
+		Coverage.collect().write(file);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(bytes, true, "UTF-8"));
+		try {
+		    Coverage.main(new String[] { file });
+		} finally {
+		    System.setOut(out);
+		}
+		String report = bytes.toString("UTF-8");
+		assertTrue(report, report.contains(
+			"    Sample:  11 of 11 methods (100%), "));
+		assertTrue(report, report.contains(
+			"47-48, 50, 55-56, 58" + System.lineSeparator()));
+	    },
+	    () -> {
+		try {
+		    Instrumenter.instrument("Bad", new byte[] { 1, 2, 3 }, 0, 
+		    			   true);
+		    fail("no exception");
+		} catch (IllegalArgumentException ex) {
+		    assertTrue(ex.getMessage().startsWith("Can't instrument Bad"));
+		}
+	    },
+	    () -> {
+		byte[] b = Files.readAllBytes(
+			new File(dir, "ImpactA.class").toPath());
+		Agent.Transformer t = new Agent.Transformer(platform, true);
+		try (URLClassLoader app = new URLClassLoader(new URL[0],
+				AgentMain.class.getClassLoader())) 
+		{
+		    assertNull("bootstrap",
+		    	       t.transform(null, "ImpactA", null, null, b));
+		    assertNull("platform",
+		    	       t.transform(platform, "ImpactA", null, null, b));
+		    assertNull("Testy", t.transform(app,
+		    	       "edu/calpoly/testy/ImpactA", null, null, b));
+		    assertNull("java",
+		    	       t.transform(app, "java/ImpactA", null, null, b));
+		    assertNull("redefined", t.transform(app, "ImpactA",
+		    	       AgentMain.class, null, b));
+		    assertNotNull(t.transform(app, "ImpactA", null, null, b));
+		}
+	    },
+	    () -> {
+		// A loader with no parent can't see Testy, so its classes
+		// are left alone, and still work.
+		Agent.Transformer t = new Agent.Transformer(platform, true);
+		try (IsolatedLoader isolated = new IsolatedLoader(dir, t)) {
+		    assertEquals(1, callValue(isolated, "ImpactA"));
+		    assertEquals(isolated, 
+		    		 isolated.loadClass("ImpactA").getClassLoader());
+		    assertEquals(0, isolated.transformed);
+		}
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test that impact analysis is refused when the agent's probes
+	// aren't the ones that this copy of Testy sees.
+	//
+	String impactFile = new File(dir, "impact.properties").toString();
+	failed = Testy.run(
+	    () -> {
+		System.setProperty("testy.impact", impactFile);
+		System.setProperty(Probes.AGENT_PROPERTY, "true");
+		try {
+		    assertTrue(Probes.isShadowed());
+		    assertNull(Impact.fromProperties());
+		} finally {
+		    System.clearProperty(Probes.AGENT_PROPERTY);
+		    System.clearProperty("testy.impact");
+		}
+	    }
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+
+	//
+	// Test test impact.  A test is skipped when the classes it used
+	// haven't changed, unless it failed last time.
+	//
+	Probes.setInstalled();
+	System.setProperty("testy.impact", impactFile);
+	List<String> first = runImpact(dir);
+	List<String> second = runImpact(dir);
+	compile(dir, impactClass("ImpactB", 3));
+	List<String> third = runImpact(dir);
+	System.clearProperty("testy.impact");
+	failed = Testy.run(
+	    () -> assertEquals(Arrays.asList("a", "b", "fails"), first),
+	    () -> assertEquals(Arrays.asList("fails"), second),
+	    () -> assertEquals(Arrays.asList("b", "fails"), third)
+	);
+	System.out.println("Expected 0 failures.  Got:  " + failed);
+	System.out.println();
+    }
+}